@@ -6,6 +6,7 @@ import org.slf4j.LoggerFactory;
 import proj.concert.common.dto.ConcertDTO;
 import proj.concert.common.dto.SeatDTO;
 import proj.concert.webapp.util.AuthUtil;
+import proj.concert.webapp.util.ClientUtil;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
@@ -13,7 +14,6 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.core.GenericType;
 import java.io.IOException;
 import java.math.BigDecimal;
@@ -43,7 +43,7 @@ public class BookingServlet extends HttpServlet {
         long concertId = Long.parseLong(req.getParameter("concertId"));
         LocalDateTime date = LocalDateTime.parse(req.getParameter("date"), FORMATTER);
 
-        Client wsClient = ClientBuilder.newClient();
+        Client wsClient = ClientUtil.newClient();
         try {
             // Grab the concert
             ConcertDTO concert = wsClient.target(Config.WEB_SERVICE_URI + "/concerts/" + concertId)
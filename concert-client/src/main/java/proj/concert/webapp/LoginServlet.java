@@ -4,6 +4,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import proj.concert.common.dto.UserDTO;
+import proj.concert.webapp.util.ClientUtil;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
@@ -11,7 +12,6 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.core.NewCookie;
 import javax.ws.rs.core.Response;
@@ -31,7 +31,7 @@ public class LoginServlet extends HttpServlet {
 
         UserDTO user = new UserDTO(username, password);
 
-        Client wsClient = ClientBuilder.newClient();
+        Client wsClient = ClientUtil.newClient();
         try {
             Response wsResponse = wsClient.target(Config.WEB_SERVICE_URI + "/login")
                     .request().post(Entity.json(user));
@@ -0,0 +1,21 @@
+package proj.concert.webapp.util;
+
+import org.jboss.resteasy.plugins.interceptors.encoding.AcceptEncodingGZIPFilter;
+import org.jboss.resteasy.plugins.interceptors.encoding.GZIPDecodingInterceptor;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+
+public class ClientUtil {
+
+    /**
+     * Creates a client for talking to the web service. The client asks for compressed responses (the service sends
+     * gzip to clients that accept both gzip and deflate) and decompresses them transparently.
+     */
+    public static Client newClient() {
+        return ClientBuilder.newClient()
+                .register(AcceptEncodingGZIPFilter.class)
+                .register(GZIPDecodingInterceptor.class);
+    }
+
+}
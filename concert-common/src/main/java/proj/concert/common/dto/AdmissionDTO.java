@@ -0,0 +1,58 @@
+package proj.concert.common.dto;
+
+/**
+ * Represents a place in the waiting room for a concert date.
+ * token                  the admission token, to be sent in the X-Admission-Token header of booking requests
+ * admitted               whether the token has been admitted, i.e. can be used to make bookings
+ * position               the number of tokens ahead of this one in the queue (0 once admitted)
+ * estimatedWaitSeconds   an estimate of how long it will be until this token is admitted
+ */
+public class AdmissionDTO {
+
+    private String token;
+    private boolean admitted;
+    private long position;
+    private long estimatedWaitSeconds;
+
+    public AdmissionDTO() {
+    }
+
+    public AdmissionDTO(String token, boolean admitted, long position, long estimatedWaitSeconds) {
+        this.token = token;
+        this.admitted = admitted;
+        this.position = position;
+        this.estimatedWaitSeconds = estimatedWaitSeconds;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public void setToken(String token) {
+        this.token = token;
+    }
+
+    public boolean isAdmitted() {
+        return admitted;
+    }
+
+    public void setAdmitted(boolean admitted) {
+        this.admitted = admitted;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public void setPosition(long position) {
+        this.position = position;
+    }
+
+    public long getEstimatedWaitSeconds() {
+        return estimatedWaitSeconds;
+    }
+
+    public void setEstimatedWaitSeconds(long estimatedWaitSeconds) {
+        this.estimatedWaitSeconds = estimatedWaitSeconds;
+    }
+}
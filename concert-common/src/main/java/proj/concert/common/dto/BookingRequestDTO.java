@@ -14,6 +14,8 @@ import java.util.List;
  * concertId   the id of the concert to be booked
  * date        the date on which that concert is to be booked
  * seats       the seats which are requested for that concert on that date
+ * numSeats    if no seats are named, the number of adjacent seats to book from the best available
+ * priceBand   if no seats are named, the name of the price band to look for seats in first (e.g. "Gold")
  */
 public class BookingRequestDTO {
 
@@ -22,6 +24,8 @@ public class BookingRequestDTO {
     @JsonDeserialize(using= LocalDateTimeDeserializer.class)
     private LocalDateTime date;
     private List<String> seatLabels = new ArrayList<>();
+    private int numSeats;
+    private String priceBand;
 
     public BookingRequestDTO(){}
 
@@ -59,4 +63,20 @@ public class BookingRequestDTO {
     public void setSeatLabels(List<String> seatLabels) {
         this.seatLabels = seatLabels;
     }
+
+    public int getNumSeats() {
+        return numSeats;
+    }
+
+    public void setNumSeats(int numSeats) {
+        this.numSeats = numSeats;
+    }
+
+    public String getPriceBand() {
+        return priceBand;
+    }
+
+    public void setPriceBand(String priceBand) {
+        this.priceBand = priceBand;
+    }
 }
@@ -0,0 +1,36 @@
+package proj.concert.common.dto;
+
+/**
+ * Represents the outcome of one booking request within a batch of booking requests.
+ * status     the HTTP status code that the request would have received on its own (e.g. 201, 400 or 403)
+ * location   the URI of the new booking, if the booking was made
+ */
+public class BookingResultDTO {
+
+    private int status;
+    private String location;
+
+    public BookingResultDTO() {
+    }
+
+    public BookingResultDTO(int status, String location) {
+        this.status = status;
+        this.location = location;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public void setLocation(String location) {
+        this.location = location;
+    }
+}
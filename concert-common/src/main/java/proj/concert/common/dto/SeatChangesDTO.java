@@ -0,0 +1,62 @@
+package proj.concert.common.dto;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Represents the changes to the seats on a concert date since a given version of its seat map.
+ * version        the version of the seat map that these changes bring the client up to
+ * full           true if the client's version was too old for changes to be given, in which case bookedSeats lists
+ *                every unavailable seat, and every other seat is available
+ * bookedSeats    the labels of the seats that have become unavailable (booked or held)
+ * releasedSeats  the labels of the seats that have become available again
+ */
+public class SeatChangesDTO {
+
+    private long version;
+    private boolean full;
+    private List<String> bookedSeats = new ArrayList<>();
+    private List<String> releasedSeats = new ArrayList<>();
+
+    public SeatChangesDTO() {
+    }
+
+    public SeatChangesDTO(long version, boolean full, List<String> bookedSeats, List<String> releasedSeats) {
+        this.version = version;
+        this.full = full;
+        this.bookedSeats = bookedSeats;
+        this.releasedSeats = releasedSeats;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    public void setFull(boolean full) {
+        this.full = full;
+    }
+
+    public List<String> getBookedSeats() {
+        return bookedSeats;
+    }
+
+    public void setBookedSeats(List<String> bookedSeats) {
+        this.bookedSeats = bookedSeats;
+    }
+
+    public List<String> getReleasedSeats() {
+        return releasedSeats;
+    }
+
+    public void setReleasedSeats(List<String> releasedSeats) {
+        this.releasedSeats = releasedSeats;
+    }
+}
@@ -11,12 +11,17 @@ import java.util.*;
  * date        the date on which that concert was booked
  * seats       the seats which were booked for that concert on that date
  * user        the user who booked the seats
+ *
+ * The seats are lazy; a booking that is shown to its user is loaded with the {@link #SEATS_GRAPH} entity graph.
  */
 
 @Entity
-@Table(name = "BOOKINGS")
+@Table(name = "BOOKINGS", indexes = @Index(name = "BOOKINGS_USER_ID", columnList = "user_id, id"))
+@NamedEntityGraph(name = Booking.SEATS_GRAPH, attributeNodes = @NamedAttributeNode("seats"))
 public class Booking {
 
+    public static final String SEATS_GRAPH = "Booking.seats";
+
     @Id
     @GeneratedValue
     private long id;
@@ -24,7 +29,7 @@ public class Booking {
     private long concertId;
     private LocalDateTime date;
 
-    @OneToMany(fetch = FetchType.EAGER)
+    @OneToMany
     private List<Seat> seats = new ArrayList<>();
 
     // we don't want username and password being stored in memory, therefore we use proxy User
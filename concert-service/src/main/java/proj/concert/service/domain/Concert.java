@@ -4,6 +4,8 @@ import java.time.LocalDateTime;
 import java.util.HashSet;
 import java.util.Set;
 import javax.persistence.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.Fetch;
 import org.hibernate.annotations.FetchMode;
 
@@ -17,12 +19,26 @@ import org.hibernate.annotations.FetchMode;
  * imageName    an image name for the concert.
  * performers   the performers in the concert
  * blurb        the concert's description
+ *
+ * Both collections are lazy. Code that needs them loads the concert with one of the named entity graphs below.
  */
 
 @Entity
 @Table(name = "CONCERTS")
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+@NamedEntityGraphs({
+        // everything shown in the catalog
+        @NamedEntityGraph(name = Concert.DETAIL_GRAPH,
+                attributeNodes = {@NamedAttributeNode("dates"), @NamedAttributeNode("performers")}),
+        // enough to check that a booking, hold or subscription is for one of the concert's dates
+        @NamedEntityGraph(name = Concert.DATES_GRAPH, attributeNodes = @NamedAttributeNode("dates"))
+})
 public class Concert {
 
+    public static final String DETAIL_GRAPH = "Concert.detail";
+    public static final String DATES_GRAPH = "Concert.dates";
+
     @Id
     @GeneratedValue
     private Long id;
@@ -37,13 +53,14 @@ public class Concert {
     private String blurb;
 
 
-    @ElementCollection(fetch = FetchType.EAGER)
+    @ElementCollection
     @CollectionTable(
             name = "CONCERT_DATES",
             joinColumns = @JoinColumn(name = "CONCERT_ID")
     )
     @Column(name = "DATE")
     @Fetch(FetchMode.SUBSELECT)
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
     private Set<LocalDateTime> dates = new HashSet<>();
 
 
@@ -56,6 +73,7 @@ public class Concert {
             joinColumns = @JoinColumn(name = "CONCERT_ID", nullable = false),
             inverseJoinColumns = @JoinColumn(name = "PERFORMER_ID", nullable = false))
     @Fetch(FetchMode.SUBSELECT)
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
     private Set<Performer> performers = new HashSet<>();
 
     public Concert() {
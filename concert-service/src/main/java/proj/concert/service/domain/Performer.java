@@ -2,6 +2,8 @@ package proj.concert.service.domain;
 
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import proj.concert.common.types.Genre;
 
 import javax.persistence.*;
@@ -23,6 +25,8 @@ import java.util.Set;
 
 @Entity
 @Table(name = "PERFORMERS")
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 public class Performer implements Comparable<Performer> {
 
     @Id
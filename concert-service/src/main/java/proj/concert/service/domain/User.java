@@ -44,6 +44,10 @@ public class User {
         this.password = password;
     }
 
+    public long getId() {
+        return id;
+    }
+
     public String getUsername() {
         return username;
     }
@@ -0,0 +1,168 @@
+package proj.concert.service.jaxrs;
+
+import proj.concert.service.util.ServiceConfig;
+
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses response bodies with gzip or deflate, according to the request's Accept-Encoding header.
+ * <p>
+ * A body's size isn't known until it has been written, so the first {@link ServiceConfig#COMPRESSION_MIN_BYTES} bytes
+ * are held back. If the body ends before then, it is sent as it is; otherwise the Content-Encoding header is set and
+ * the body is compressed from the start. Responses that are already encoded (such as the pre-compressed catalog) and
+ * server-sent event streams, which must reach the client event by event, are left alone.
+ * <p>
+ * Every response that could have been compressed carries Vary: Accept-Encoding, so that caches don't send a compressed
+ * response to a client that can't read it. A compressed response's ETag is replaced with
+ * {@link ContentEncoding#encodedEntityTag}, so resources that evaluate preconditions must use
+ * {@link ContentEncoding#responseCoding} to find the tag their response will carry.
+ */
+@Provider
+public class CompressionInterceptor implements WriterInterceptor {
+
+    @Context
+    private HttpHeaders requestHeaders;
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+        MultivaluedMap<String, Object> headers = context.getHeaders();
+        if (headers.containsKey(HttpHeaders.CONTENT_ENCODING)
+                || MediaType.SERVER_SENT_EVENTS_TYPE.isCompatible(context.getMediaType())) {
+            context.proceed();
+            return;
+        }
+
+        if (!varies(headers)) {
+            headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        String coding = ContentEncoding.preferredCoding(requestHeaders.getHeaderString(HttpHeaders.ACCEPT_ENCODING));
+        if (coding == null) {
+            context.proceed();
+            return;
+        }
+
+        CompressingOutputStream output = new CompressingOutputStream(context.getOutputStream(), headers, coding);
+        context.setOutputStream(output);
+        context.proceed();
+        output.finish();
+    }
+
+    private static boolean varies(MultivaluedMap<String, Object> headers) {
+        if (headers.containsKey(HttpHeaders.VARY)) {
+            for (Object vary : headers.get(HttpHeaders.VARY)) {
+                if (vary.toString().toLowerCase().contains(HttpHeaders.ACCEPT_ENCODING.toLowerCase())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Buffers the start of a body, and compresses the body once it reaches the compression threshold. The response
+     * headers can be changed until then, as nothing has been written to the response.
+     */
+    private static class CompressingOutputStream extends OutputStream {
+        private final OutputStream response;
+        private final MultivaluedMap<String, Object> headers;
+        private final String coding;
+
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream(ServiceConfig.COMPRESSION_MIN_BYTES);
+        private DeflaterOutputStream compressor;
+        private boolean finished;
+
+        CompressingOutputStream(OutputStream response, MultivaluedMap<String, Object> headers, String coding) {
+            this.response = response;
+            this.headers = headers;
+            this.coding = coding;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (compressor == null) {
+                if (buffer.size() + len < ServiceConfig.COMPRESSION_MIN_BYTES) {
+                    buffer.write(b, off, len);
+                    return;
+                }
+                startCompressing();
+            }
+            compressor.write(b, off, len);
+        }
+
+        private void startCompressing() throws IOException {
+            headers.putSingle(HttpHeaders.CONTENT_ENCODING, coding);
+            headers.remove(HttpHeaders.CONTENT_LENGTH);
+            Object entityTag = headers.getFirst(HttpHeaders.ETAG);
+            if (entityTag instanceof EntityTag) {
+                headers.putSingle(HttpHeaders.ETAG, ContentEncoding.encodedEntityTag((EntityTag) entityTag, coding));
+            }
+
+            OutputStream unclosable = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    response.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    response.write(b, off, len);
+                }
+
+                @Override
+                public void close() {
+                    // the container closes the response
+                }
+            };
+            compressor = coding.equals(ContentEncoding.GZIP)
+                    ? new GZIPOutputStream(unclosable, 8192)
+                    : new DeflaterOutputStream(unclosable, true);
+            buffer.writeTo(compressor);
+            buffer = null;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // a partly buffered body is only flushed once it's known whether it will be compressed
+            if (compressor != null) {
+                compressor.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+
+        /**
+         * Writes out the rest of the body. Closing the compressor ends its deflater, but not the response.
+         */
+        void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            if (compressor != null) {
+                compressor.close();
+            } else {
+                buffer.writeTo(response);
+            }
+        }
+    }
+}
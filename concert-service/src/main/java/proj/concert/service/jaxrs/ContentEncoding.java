@@ -0,0 +1,97 @@
+package proj.concert.service.jaxrs;
+
+import proj.concert.service.util.ServiceConfig;
+
+import javax.ws.rs.core.EntityTag;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Helpers for serving compressed responses, in the content codings the service supports: gzip and deflate.
+ */
+public class ContentEncoding {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    /**
+     * @param acceptEncoding the value of a request's Accept-Encoding header, which may be null
+     * @param coding         a content coding, e.g. {@link #GZIP}
+     * @return true if the client accepts responses in the given coding, i.e. the header lists it (or *) without a
+     * q-value of 0
+     */
+    public static boolean isAccepted(String acceptEncoding, String coding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String accepted : acceptEncoding.split(",")) {
+            String[] parameters = accepted.split(";");
+            String name = parameters[0].trim();
+            if (!name.equalsIgnoreCase(coding) && !name.equals("*")) {
+                continue;
+            }
+            boolean refused = false;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        refused = Float.parseFloat(parameter.substring(2)) == 0;
+                    } catch (NumberFormatException e) {
+                        refused = true;
+                    }
+                }
+            }
+            return !refused;
+        }
+        return false;
+    }
+
+    /**
+     * @param acceptEncoding the value of a request's Accept-Encoding header, which may be null
+     * @return the coding to compress a response to the request with (gzip if the client accepts it, otherwise
+     * deflate), or null if it accepts neither
+     */
+    public static String preferredCoding(String acceptEncoding) {
+        if (isAccepted(acceptEncoding, GZIP)) {
+            return GZIP;
+        }
+        if (isAccepted(acceptEncoding, DEFLATE)) {
+            return DEFLATE;
+        }
+        return null;
+    }
+
+    /**
+     * @param acceptEncoding the value of a request's Accept-Encoding header, which may be null
+     * @param length         the length of the response body, unencoded
+     * @return the coding the {@link CompressionInterceptor} will compress the response with, or null if it will be sent
+     * as it is
+     */
+    public static String responseCoding(String acceptEncoding, int length) {
+        return length < ServiceConfig.COMPRESSION_MIN_BYTES ? null : preferredCoding(acceptEncoding);
+    }
+
+    /**
+     * @return the entity tag of a representation's encoding in the given coding. The encoded body is a different
+     * representation, so it needs a different strong tag, which the resource can match against If-None-Match.
+     */
+    public static EntityTag encodedEntityTag(EntityTag entityTag, String coding) {
+        return new EntityTag(entityTag.getValue() + "-" + coding, entityTag.isWeak());
+    }
+
+    /**
+     * @return the given bytes, gzip-compressed
+     */
+    public static byte[] gzip(byte[] bytes) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(bytes);
+        } catch (IOException e) {
+            // can't happen when writing to memory
+            throw new UncheckedIOException(e);
+        }
+        return compressed.toByteArray();
+    }
+}
@@ -0,0 +1,16 @@
+package proj.concert.service.mapper;
+
+import proj.concert.common.dto.AdmissionDTO;
+import proj.concert.service.services.WaitingRoom.Admission;
+
+public class AdmissionMapper {
+    public static AdmissionDTO toDTO(Admission admission) {
+        long position = admission.getPosition();
+        return new AdmissionDTO(
+                admission.getToken(),
+                position == 0,
+                position,
+                admission.getEstimatedWaitSeconds()
+        );
+    }
+}
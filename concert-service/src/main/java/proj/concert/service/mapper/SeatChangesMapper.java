@@ -0,0 +1,27 @@
+package proj.concert.service.mapper;
+
+import proj.concert.common.dto.SeatChangesDTO;
+import proj.concert.service.util.SeatAvailabilityIndex.SeatChanges;
+import proj.concert.service.util.TheatreLayout;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SeatChangesMapper {
+    public static SeatChangesDTO toDTO(SeatChanges changes) {
+        return new SeatChangesDTO(
+                changes.getVersion(),
+                changes.isFull(),
+                toLabels(changes.getTaken()),
+                toLabels(changes.getFreed())
+        );
+    }
+
+    private static List<String> toLabels(int[] seats) {
+        List<String> seatLabels = new ArrayList<>();
+        for (int seat : seats) {
+            seatLabels.add(TheatreLayout.seatLabel(seat));
+        }
+        return seatLabels;
+    }
+}
@@ -0,0 +1,18 @@
+package proj.concert.service.mapper;
+
+import proj.concert.common.dto.SeatHoldDTO;
+import proj.concert.service.services.SeatHoldRegistry.SeatHold;
+
+import java.util.ArrayList;
+
+public class SeatHoldMapper {
+    public static SeatHoldDTO toDTO(SeatHold hold) {
+        return new SeatHoldDTO(
+                hold.getId(),
+                hold.getConcertId(),
+                hold.getDate(),
+                new ArrayList<>(hold.getSeatLabels()),
+                hold.getExpiresAt()
+        );
+    }
+}
@@ -2,6 +2,7 @@ package proj.concert.service.mapper;
 
 import proj.concert.common.dto.SeatDTO;
 import proj.concert.service.domain.Seat;
+import proj.concert.service.util.TheatreLayout;
 
 public class SeatMapper {
     public static SeatDTO toDTO(Seat seat) {
@@ -10,4 +11,11 @@ public class SeatMapper {
                 seat.getPrice()
         );
     }
+
+    public static SeatDTO toDTO(int seatIndex) {
+        return new SeatDTO(
+                TheatreLayout.seatLabel(seatIndex),
+                TheatreLayout.priceOf(seatIndex)
+        );
+    }
 }
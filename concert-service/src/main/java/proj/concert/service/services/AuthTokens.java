@@ -0,0 +1,193 @@
+package proj.concert.service.services;
+
+import proj.concert.service.util.ServiceConfig;
+import proj.concert.service.util.ServiceMetrics;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Issues and verifies the signed auth tokens used when {@link ServiceConfig#AUTH_MODE} is
+ * {@link ServiceConfig.AuthMode#TOKEN}. A token carries everything needed to authenticate a request, so neither
+ * logging in nor authenticating touches the users' sessions in the database.
+ * <p>
+ * A token is <code>keyId.payload.signature</code>: the payload (user id, expiry, a random token id and the username)
+ * and its HMAC-SHA256 signature are base64url-encoded, and the signature covers the key id as well as the payload.
+ * <p>
+ * Keys are given by {@link ServiceConfig#AUTH_TOKEN_KEYS}. New tokens are signed with the first key, and tokens signed
+ * with any of them are accepted, so a key can be rotated by putting its replacement first and removing it once the
+ * tokens it signed have expired.
+ * <p>
+ * Revoked tokens (those logged out of) are remembered by token id until they would have expired anyway, so the
+ * revocation list only ever holds tokens that are logged out of and still live. It is kept in memory, so it is lost if
+ * the service restarts.
+ */
+class AuthTokens {
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int KEY_BYTES = 32;
+
+    // user id, expiry, token id, then the username
+    private static final int FIXED_PAYLOAD_BYTES = 3 * Long.BYTES;
+
+    private static final long PRUNE_INTERVAL_MILLIS = 60000;
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final SecureRandom random = new SecureRandom();
+
+    // initialised with their keys, and cloned for each use as Macs aren't thread safe
+    private final Map<String, Mac> macsByKeyId = new LinkedHashMap<>();
+    private final String signingKeyId;
+
+    // the ids of revoked tokens, with when each expires
+    private final ConcurrentMap<Long, Long> revoked = new ConcurrentHashMap<>();
+    private volatile long lastPrunedMillis = System.currentTimeMillis();
+
+    private final AtomicLong numIssued = new AtomicLong();
+    private final AtomicLong numRejected = new AtomicLong();
+
+    /**
+     * @param keys <code>keyId:base64Key</code> pairs, separated by commas. If empty, a random key is made up, so tokens
+     *             are only valid until the service restarts.
+     */
+    AuthTokens(String keys) {
+        if (keys.trim().isEmpty()) {
+            byte[] key = new byte[KEY_BYTES];
+            random.nextBytes(key);
+            macsByKeyId.put("0", newMac(key));
+        } else {
+            for (String entry : keys.split(",")) {
+                String[] idAndKey = entry.trim().split(":", 2);
+                if (idAndKey.length != 2 || idAndKey[0].isEmpty() || idAndKey[0].contains(".")) {
+                    throw new IllegalArgumentException("Auth token keys must be keyId:base64Key pairs: " + idAndKey[0]);
+                }
+                macsByKeyId.put(idAndKey[0], newMac(Base64.getDecoder().decode(idAndKey[1])));
+            }
+        }
+        signingKeyId = macsByKeyId.keySet().iterator().next();
+
+        ServiceMetrics.instance().gauge("authTokens.issued", numIssued::get);
+        ServiceMetrics.instance().gauge("authTokens.rejected", numRejected::get);
+        ServiceMetrics.instance().gauge("authTokens.revoked", revoked::size);
+    }
+
+    /**
+     * @return a new token for the given user, valid for {@link ServiceConfig#AUTH_TOKEN_TTL_SECONDS}
+     */
+    String issue(long userId, String username) {
+        byte[] usernameBytes = username.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(FIXED_PAYLOAD_BYTES + usernameBytes.length)
+                .putLong(userId)
+                .putLong(System.currentTimeMillis() + ServiceConfig.AUTH_TOKEN_TTL_SECONDS * 1000)
+                .putLong(random.nextLong())
+                .put(usernameBytes);
+
+        String signed = signingKeyId + "." + ENCODER.encodeToString(payload.array());
+        numIssued.incrementAndGet();
+        return signed + "." + ENCODER.encodeToString(sign(macsByKeyId.get(signingKeyId), signed));
+    }
+
+    /**
+     * @return the user the given token was issued to, or null if it isn't a token this service signed, or has expired
+     * or been revoked
+     */
+    UserPrincipal verify(String token) {
+        ByteBuffer payload = verifiedPayload(token);
+        if (payload == null) {
+            numRejected.incrementAndGet();
+            return null;
+        }
+        long userId = payload.getLong();
+        payload.getLong();
+        payload.getLong();
+        return new UserPrincipal(userId, StandardCharsets.UTF_8.decode(payload).toString());
+    }
+
+    /**
+     * Revokes the given token, if it is valid.
+     *
+     * @return whether the token was valid
+     */
+    boolean revoke(String token) {
+        ByteBuffer payload = verifiedPayload(token);
+        if (payload == null) {
+            return false;
+        }
+        payload.getLong();
+        long expiresAt = payload.getLong();
+        revoked.put(payload.getLong(), expiresAt);
+
+        long now = System.currentTimeMillis();
+        if (now - lastPrunedMillis > PRUNE_INTERVAL_MILLIS) {
+            lastPrunedMillis = now;
+            revoked.values().removeIf(expiry -> expiry < now);
+        }
+        return true;
+    }
+
+    // Checks the token's signature, expiry and revocation, and returns its payload positioned at the start
+    private ByteBuffer verifiedPayload(String token) {
+        int payloadStart = token.indexOf('.');
+        int signatureStart = token.lastIndexOf('.');
+        if (payloadStart < 0 || signatureStart == payloadStart) {
+            return null;
+        }
+        Mac mac = macsByKeyId.get(token.substring(0, payloadStart));
+        if (mac == null) {
+            return null;
+        }
+
+        byte[] payloadBytes;
+        byte[] signature;
+        try {
+            payloadBytes = DECODER.decode(token.substring(payloadStart + 1, signatureStart));
+            signature = DECODER.decode(token.substring(signatureStart + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        // compared in constant time, so the comparison doesn't reveal how much of a forged signature is right
+        if (payloadBytes.length < FIXED_PAYLOAD_BYTES
+                || !MessageDigest.isEqual(signature, sign(mac, token.substring(0, signatureStart)))) {
+            return null;
+        }
+
+        ByteBuffer payload = ByteBuffer.wrap(payloadBytes);
+        long expiresAt = payload.getLong(Long.BYTES);
+        long tokenId = payload.getLong(2 * Long.BYTES);
+        if (expiresAt < System.currentTimeMillis() || revoked.containsKey(tokenId)) {
+            return null;
+        }
+        return payload;
+    }
+
+    private static byte[] sign(Mac mac, String signed) {
+        try {
+            return ((Mac) mac.clone()).doFinal(signed.getBytes(StandardCharsets.US_ASCII));
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Mac newMac(byte[] key) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
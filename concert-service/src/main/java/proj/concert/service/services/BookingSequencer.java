@@ -0,0 +1,239 @@
+package proj.concert.service.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proj.concert.service.util.SeatAvailabilityIndex;
+import proj.concert.service.util.ServiceConfig;
+import proj.concert.service.util.TheatreLayout;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Singleton booking pipeline for the {@link ServiceConfig.BookingEngine#SEQUENCER} engine, in which each concert date
+ * has a single thread that decides every booking for that date.
+ * <p>
+ * Booking requests are placed in a preallocated ring buffer of {@link ServiceConfig#SEQUENCER_RING_SIZE} slots
+ * (rounded up to a power of two), one ring per date. Producers claim a slot by advancing the ring's sequence number
+ * with a compare-and-set, fill it in and publish it; the date's sequencer thread then takes requests off the ring in
+ * sequence order and claims their seats in the {@link SeatAvailabilityIndex}. As no other thread books seats for the date, claims never have to be retried
+ * because of a competing booking, and requests are decided strictly in the order they arrived. If a ring is full, the
+ * request is rejected rather than queued without bound.
+ * <p>
+ * Claimed bookings are handed to the {@link BookingWriter}, which group-commits them with other bookings waiting to be
+ * persisted. The sequencer never waits for the database, so a slow commit doesn't hold up decisions.
+ */
+public class BookingSequencer {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(BookingSequencer.class);
+
+    private static final int BEST_AVAILABLE_ATTEMPTS = 3;
+
+    private static BookingSequencer instance = null;
+
+    private final ConcurrentMap<LocalDateTime, DateSequencer> sequencers = new ConcurrentHashMap<>();
+    private final int ringSize;
+    private final BookingWriter writer;
+
+    protected BookingSequencer() {
+        this(ServiceConfig.SEQUENCER_RING_SIZE, BookingWriter.instance());
+    }
+
+    /**
+     * @param ringSize the number of requests to queue per date
+     * @param writer   persists the bookings whose seats have been claimed
+     */
+    BookingSequencer(int ringSize, BookingWriter writer) {
+        // rounded up to a power of two, so that sequence numbers can be mapped to slots with a mask
+        this.ringSize = Integer.highestOneBit(Math.max(1, ringSize - 1)) << 1;
+        this.writer = writer;
+    }
+
+    public static synchronized BookingSequencer instance() {
+        if (instance == null) {
+            instance = new BookingSequencer();
+        }
+        return instance;
+    }
+
+    /**
+     * Queues a booking of the seats with the given labels.
+     *
+     * @param ownHeld the seats held by the user, as returned by {@link SeatHoldRegistry#heldBy(long, LocalDateTime)}
+     * @return a future that completes with the id of the persisted booking, or with null if any of the seats was
+     * unavailable. It completes exceptionally with a {@link RejectedExecutionException} if the date's ring is full, or
+     * with the cause if the booking couldn't be persisted.
+     */
+    public CompletableFuture<Long> submit(long userId, long concertId, LocalDateTime date, List<String> seatLabels,
+                                          long[] ownHeld) {
+        return sequencerFor(date).publish(userId, concertId, seatLabels, 0, null, ownHeld);
+    }
+
+    /**
+     * Queues a booking of the first available block of adjacent seats in one row.
+     *
+     * @param rowRanges the rows to search, in order of preference, as pairs of first row and the row after the last
+     * @return a future that completes as for {@link #submit(long, long, LocalDateTime, List, long[])}
+     */
+    public CompletableFuture<Long> submitBestAvailable(long userId, long concertId, LocalDateTime date, int numSeats,
+                                                       List<int[]> rowRanges, long[] ownHeld) {
+        return sequencerFor(date).publish(userId, concertId, null, numSeats, rowRanges, ownHeld);
+    }
+
+    private DateSequencer sequencerFor(LocalDateTime date) {
+        return sequencers.computeIfAbsent(date, DateSequencer::new);
+    }
+
+    /**
+     * The ring buffer and sequencer thread for one date.
+     */
+    private final class DateSequencer implements Runnable {
+        private final LocalDateTime date;
+        private final Slot[] ring = new Slot[ringSize];
+        private final int mask = ring.length - 1;
+
+        // the next sequence number to be claimed by a producer
+        private final AtomicLong next = new AtomicLong();
+        // every sequence number below this one has been decided, and its slot may be reused
+        private volatile long decided = 0;
+
+        private final Thread thread;
+
+        DateSequencer(LocalDateTime date) {
+            this.date = date;
+            for (int i = 0; i < ring.length; i++) {
+                ring[i] = new Slot();
+            }
+            thread = new Thread(this, "booking-sequencer-" + date);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        CompletableFuture<Long> publish(long userId, long concertId, List<String> seatLabels, int numSeats,
+                                        List<int[]> rowRanges, long[] ownHeld) {
+            CompletableFuture<Long> result = new CompletableFuture<>();
+
+            long sequence;
+            do {
+                sequence = next.get();
+                if (sequence - decided >= ring.length) {
+                    result.completeExceptionally(new RejectedExecutionException("Booking queue for " + date + " is full"));
+                    return result;
+                }
+            } while (!next.compareAndSet(sequence, sequence + 1));
+
+            Slot slot = ring[(int) (sequence & mask)];
+            slot.userId = userId;
+            slot.concertId = concertId;
+            slot.seatLabels = seatLabels;
+            slot.numSeats = numSeats;
+            slot.rowRanges = rowRanges;
+            slot.ownHeld = ownHeld;
+            slot.result = result;
+            // writing the sequence number publishes the slot's other fields to the sequencer thread
+            slot.sequence = sequence;
+
+            LockSupport.unpark(thread);
+            return result;
+        }
+
+        @Override
+        public void run() {
+            long sequence = 0;
+            while (true) {
+                Slot slot = ring[(int) (sequence & mask)];
+                if (slot.sequence != sequence) {
+                    LockSupport.park(this);
+                    if (Thread.interrupted()) {
+                        return;
+                    }
+                    continue;
+                }
+                try {
+                    decide(slot);
+                } catch (Throwable e) {
+                    // an Error mustn't end the thread, or every later booking for the date would wait for it forever
+                    LOGGER.error("Unexpected error deciding booking for " + date, e);
+                    slot.result.completeExceptionally(e);
+                }
+                slot.clear();
+                decided = ++sequence;
+            }
+        }
+
+        private void decide(Slot slot) {
+            List<String> seatLabels = slot.seatLabels;
+            boolean claimed;
+            if (seatLabels != null) {
+                claimed = SeatAvailabilityIndex.instance().tryClaim(date, seatLabels, slot.ownHeld);
+            } else {
+                // another booking can't take the block first, but a hold can, so the search may need repeating
+                claimed = false;
+                for (int attempt = 0; attempt < BEST_AVAILABLE_ATTEMPTS && !claimed; attempt++) {
+                    seatLabels = findBestAvailable(slot.numSeats, slot.rowRanges);
+                    if (seatLabels == null) {
+                        break;
+                    }
+                    claimed = SeatAvailabilityIndex.instance().tryClaim(date, seatLabels, slot.ownHeld);
+                }
+            }
+
+            if (!claimed) {
+                slot.result.complete(null);
+                return;
+            }
+            SeatHoldRegistry.instance().consume(slot.userId, date, seatLabels);
+
+            CompletableFuture<Long> result = slot.result;
+            writer.submit(slot.userId, slot.concertId, date, seatLabels).whenComplete((bookingId, e) -> {
+                if (e != null) {
+                    result.completeExceptionally(e);
+                } else {
+                    result.complete(bookingId);
+                }
+            });
+        }
+
+        private List<String> findBestAvailable(int numSeats, List<int[]> rowRanges) {
+            for (int[] rows : rowRanges) {
+                int firstSeat = SeatAvailabilityIndex.instance().findFreeRun(date, numSeats, rows[0], rows[1]);
+                if (firstSeat >= 0) {
+                    List<String> seatLabels = new ArrayList<>();
+                    for (int seat = firstSeat; seat < firstSeat + numSeats; seat++) {
+                        seatLabels.add(TheatreLayout.seatLabel(seat));
+                    }
+                    return seatLabels;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A slot in a ring buffer. Slots are allocated once and reused, each holding one booking request at a time.
+     */
+    private static final class Slot {
+        volatile long sequence = -1;
+        long userId;
+        long concertId;
+        List<String> seatLabels;
+        int numSeats;
+        List<int[]> rowRanges;
+        long[] ownHeld;
+        CompletableFuture<Long> result;
+
+        void clear() {
+            seatLabels = null;
+            rowRanges = null;
+            ownHeld = null;
+            result = null;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package proj.concert.service.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proj.concert.service.domain.Booking;
+import proj.concert.service.domain.Seat;
+import proj.concert.service.domain.User;
+import proj.concert.service.util.SeatAvailabilityIndex;
+import proj.concert.service.util.ServiceConfig;
+
+import javax.persistence.EntityManager;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Singleton write-behind writer for bookings whose seats have already been claimed in the
+ * {@link SeatAvailabilityIndex}.
+ * <p>
+ * Bookings are queued with {@link #submit(long, long, LocalDateTime, List)} and persisted by a single background
+ * thread, which drains the queue and writes up to {@link ServiceConfig#WRITE_BEHIND_BATCH_SIZE} bookings (and their
+ * Seat.isBooked flags) in one transaction. No row locks are needed, because the in-memory claim already guarantees
+ * that no two queued bookings share a seat.
+ * <p>
+ * If a booking can't be persisted, its seats are released again and its future completes exceptionally. This includes
+ * bookings in a batch that was being written when an {@link Error} was thrown; the writer thread carries on after it.
+ */
+public class BookingWriter {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(BookingWriter.class);
+
+    private static BookingWriter instance = null;
+
+    private final BlockingQueue<PendingBooking> queue = new LinkedBlockingQueue<>();
+
+    protected BookingWriter() {
+        Thread writerThread = new Thread(this::run, "booking-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public static synchronized BookingWriter instance() {
+        if (instance == null) {
+            instance = new BookingWriter();
+        }
+        return instance;
+    }
+
+    /**
+     * Queues a booking to be persisted.
+     *
+     * @return a future that completes with the id of the persisted booking, or exceptionally (once the booking's seats
+     * have been released) if it couldn't be persisted
+     */
+    public CompletableFuture<Long> submit(long userId, long concertId, LocalDateTime date, List<String> seatLabels) {
+        PendingBooking pending = new PendingBooking(userId, concertId, date, seatLabels);
+        queue.add(pending);
+        return pending.bookingId;
+    }
+
+    private void run() {
+        List<PendingBooking> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, ServiceConfig.WRITE_BEHIND_BATCH_SIZE - 1);
+                write(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Throwable e) {
+                // an Error mustn't end the thread, or every later booking would wait for it forever
+                LOGGER.error("Unexpected error in booking writer", e);
+                for (PendingBooking pending : batch) {
+                    if (!pending.bookingId.isDone()) {
+                        fail(pending, e);
+                    }
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<PendingBooking> batch) {
+        try {
+            persist(batch);
+            LOGGER.debug("Persisted " + batch.size() + " bookings");
+        } catch (RuntimeException e) {
+            if (batch.size() == 1) {
+                fail(batch.get(0), e);
+                return;
+            }
+            // Retry one at a time, so that a single bad booking doesn't fail the rest of the batch.
+            LOGGER.warn("Batch of " + batch.size() + " bookings failed, retrying individually", e);
+            for (PendingBooking pending : batch) {
+                try {
+                    persist(Collections.singletonList(pending));
+                } catch (RuntimeException individualFailure) {
+                    fail(pending, individualFailure);
+                }
+            }
+        }
+    }
+
+    private void persist(List<PendingBooking> batch) {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            em.getTransaction().begin();
+
+            Map<LocalDateTime, Map<String, Seat>> seatsByDate = loadSeats(em, batch);
+
+            List<Booking> bookings = new ArrayList<>();
+            for (PendingBooking pending : batch) {
+                Map<String, Seat> seatsForDate = seatsByDate.get(pending.date);
+                List<Seat> seats = new ArrayList<>();
+                for (String label : pending.seatLabels) {
+                    Seat seat = seatsForDate.get(label);
+                    if (seat != null) {
+                        seat.setIsBooked(true);
+                        seats.add(seat);
+                    }
+                }
+                Booking booking = new Booking(pending.concertId, pending.date, seats, em.getReference(User.class, pending.userId));
+                em.persist(booking);
+                bookings.add(booking);
+            }
+
+            em.getTransaction().commit();
+
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).bookingId.complete(bookings.get(i).getId());
+            }
+        } catch (RuntimeException | Error e) {
+            if (em.getTransaction().isActive()) {
+                em.getTransaction().rollback();
+            }
+            throw e;
+        } finally {
+            em.close();
+        }
+    }
+
+    /**
+     * Loads the seats needed by the batch with one query per date, keyed by date and then by label.
+     */
+    private Map<LocalDateTime, Map<String, Seat>> loadSeats(EntityManager em, List<PendingBooking> batch) {
+        Map<LocalDateTime, Set<String>> labelsByDate = new HashMap<>();
+        for (PendingBooking pending : batch) {
+            labelsByDate.computeIfAbsent(pending.date, date -> new HashSet<>()).addAll(pending.seatLabels);
+        }
+
+        Map<LocalDateTime, Map<String, Seat>> seatsByDate = new HashMap<>();
+        for (Map.Entry<LocalDateTime, Set<String>> entry : labelsByDate.entrySet()) {
+            Map<String, Seat> seatsByLabel = new HashMap<>();
+            if (!entry.getValue().isEmpty()) {
+                List<Seat> seats = em.createQuery("select s from Seat s where s.label in (:seatLabels) and s.date=:date", Seat.class)
+                        .setParameter("seatLabels", entry.getValue())
+                        .setParameter("date", entry.getKey())
+                        .getResultList();
+                for (Seat seat : seats) {
+                    seatsByLabel.put(seat.getLabel(), seat);
+                }
+            }
+            seatsByDate.put(entry.getKey(), seatsByLabel);
+        }
+        return seatsByDate;
+    }
+
+    private void fail(PendingBooking pending, Throwable e) {
+        LOGGER.error("Could not persist booking for concert " + pending.concertId + " on " + pending.date, e);
+        SeatAvailabilityIndex.instance().release(pending.date, pending.seatLabels);
+        pending.bookingId.completeExceptionally(e);
+    }
+
+    private static class PendingBooking {
+        final long userId;
+        final long concertId;
+        final LocalDateTime date;
+        final List<String> seatLabels;
+        final CompletableFuture<Long> bookingId = new CompletableFuture<>();
+
+        PendingBooking(long userId, long concertId, LocalDateTime date, List<String> seatLabels) {
+            this.userId = userId;
+            this.concertId = concertId;
+            this.date = date;
+            this.seatLabels = seatLabels;
+        }
+    }
+}
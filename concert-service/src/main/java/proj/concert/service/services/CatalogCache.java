@@ -0,0 +1,251 @@
+package proj.concert.service.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.hibernate.annotations.QueryHints;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proj.concert.service.domain.Concert;
+import proj.concert.service.domain.Performer;
+import proj.concert.service.jaxrs.ContentEncoding;
+import proj.concert.service.mapper.ConcertMapper;
+import proj.concert.service.mapper.ConcertSummaryMapper;
+import proj.concert.service.mapper.PerformerMapper;
+import proj.concert.service.util.CatalogGeneration;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import javax.ws.rs.core.EntityTag;
+import java.io.ByteArrayOutputStream;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Singleton holding the concert and performer catalog as ready-encoded JSON, so that catalog requests are served
+ * without mapping entities to DTOs or running Jackson.
+ * <p>
+ * Every catalog resource (the concert list, the concert summaries, the performer list, and each concert and performer)
+ * is encoded once as UTF-8 JSON, and once more gzip-compressed. The encodings are kept in an immutable
+ * {@link Snapshot}, along with the catalog's entity tag. When the catalog changes, {@link #rebuild()} encodes a whole
+ * new snapshot and swaps it in, so a request always sees a consistent catalog and tag.
+ * <p>
+ * Concerts and performers are kept ordered by id, so a page of them (see {@link Snapshot#getConcertPage(long, int)})
+ * is found by seeking to the cursor, however deep the page, and assembled from the individual encodings.
+ */
+public class CatalogCache {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(CatalogCache.class);
+
+    private static final CatalogCache instance = new CatalogCache();
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private volatile Snapshot snapshot;
+
+    protected CatalogCache() {
+    }
+
+    public static CatalogCache instance() {
+        return instance;
+    }
+
+    /**
+     * @return the current catalog
+     */
+    public Snapshot current() {
+        Snapshot current = snapshot;
+        return current != null ? current : rebuild();
+    }
+
+    /**
+     * Reads the catalog from the database and replaces the current snapshot with it. This must be called whenever
+     * the catalog changes.
+     *
+     * @return the new snapshot
+     */
+    public synchronized Snapshot rebuild() {
+        EntityManager em = PersistenceManager.instance().createEntityManager();
+        try {
+            em.getTransaction().begin();
+            TypedQuery<Concert> concertQuery = em.createQuery("select distinct c from Concert c", Concert.class)
+                    .setHint(QueryHints.CACHEABLE, true)
+                    .setHint(QueryHints.PASS_DISTINCT_THROUGH, false);
+            PersistenceManager.fetchGraph(em, Concert.DETAIL_GRAPH).forEach(concertQuery::setHint);
+            List<Concert> concerts = concertQuery.getResultList();
+            List<Performer> performers = em.createQuery("select p from Performer p", Performer.class)
+                    .setHint(QueryHints.CACHEABLE, true)
+                    .getResultList();
+
+            NavigableMap<Long, EncodedJson> concertsById = new TreeMap<>();
+            for (Concert concert : concerts) {
+                concertsById.put(concert.getId(), encode(ConcertMapper.toDTO(concert)));
+            }
+            NavigableMap<Long, EncodedJson> performersById = new TreeMap<>();
+            for (Performer performer : performers) {
+                performersById.put(performer.getId(), encode(PerformerMapper.toDTO(performer)));
+            }
+
+            CatalogGeneration.instance().bump();
+            snapshot = new Snapshot(
+                    CatalogGeneration.instance().entityTag(),
+                    encode(concerts.stream().map(ConcertMapper::toDTO).collect(Collectors.toList())),
+                    encode(concerts.stream().map(ConcertSummaryMapper::toDTO).collect(Collectors.toList())),
+                    encode(performers.stream().map(PerformerMapper::toDTO).collect(Collectors.toList())),
+                    concertsById,
+                    performersById);
+            em.getTransaction().commit();
+
+            LOGGER.debug("Encoded catalog of " + concerts.size() + " concerts and " + performers.size() + " performers");
+            return snapshot;
+        } finally {
+            em.close();
+        }
+    }
+
+    private EncodedJson encode(Object dto) {
+        try {
+            return new EncodedJson(objectMapper.writeValueAsBytes(dto));
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * An immutable copy of the whole catalog, encoded as JSON.
+     */
+    public static final class Snapshot {
+        private final EntityTag entityTag;
+        private final EntityTag gzipEntityTag;
+        private final EncodedJson concerts;
+        private final EncodedJson concertSummaries;
+        private final EncodedJson performers;
+        private final NavigableMap<Long, EncodedJson> concertsById;
+        private final NavigableMap<Long, EncodedJson> performersById;
+
+        private Snapshot(EntityTag entityTag, EncodedJson concerts, EncodedJson concertSummaries,
+                         EncodedJson performers, NavigableMap<Long, EncodedJson> concertsById,
+                         NavigableMap<Long, EncodedJson> performersById) {
+            this.entityTag = entityTag;
+            this.gzipEntityTag = ContentEncoding.encodedEntityTag(entityTag, ContentEncoding.GZIP);
+            this.concerts = concerts;
+            this.concertSummaries = concertSummaries;
+            this.performers = performers;
+            this.concertsById = Collections.unmodifiableNavigableMap(concertsById);
+            this.performersById = Collections.unmodifiableNavigableMap(performersById);
+        }
+
+        /**
+         * @return the entity tag of the catalog's resources, or of their gzip encodings
+         */
+        public EntityTag getEntityTag(boolean gzip) {
+            return gzip ? gzipEntityTag : entityTag;
+        }
+
+        public EncodedJson getConcerts() {
+            return concerts;
+        }
+
+        public EncodedJson getConcertSummaries() {
+            return concertSummaries;
+        }
+
+        public EncodedJson getPerformers() {
+            return performers;
+        }
+
+        /**
+         * @return the concert with the given id, or null if there's no such concert
+         */
+        public EncodedJson getConcert(long id) {
+            return concertsById.get(id);
+        }
+
+        /**
+         * @return the performer with the given id, or null if there's no such performer
+         */
+        public EncodedJson getPerformer(long id) {
+            return performersById.get(id);
+        }
+
+        /**
+         * @return up to limit concerts, in order of id, starting after the concert with the given id
+         */
+        public Page getConcertPage(long after, int limit) {
+            return page(concertsById, after, limit);
+        }
+
+        /**
+         * @return up to limit performers, in order of id, starting after the performer with the given id
+         */
+        public Page getPerformerPage(long after, int limit) {
+            return page(performersById, after, limit);
+        }
+
+        private static Page page(NavigableMap<Long, EncodedJson> byId, long after, int limit) {
+            ByteArrayOutputStream json = new ByteArrayOutputStream();
+            json.write('[');
+            int size = 0;
+            Long last = null;
+            for (Map.Entry<Long, EncodedJson> item : byId.tailMap(after, false).entrySet()) {
+                if (size == limit) {
+                    json.write(']');
+                    return new Page(json.toByteArray(), last);
+                }
+                if (size > 0) {
+                    json.write(',');
+                }
+                json.writeBytes(item.getValue().getBytes(false));
+                last = item.getKey();
+                size++;
+            }
+            json.write(']');
+            return new Page(json.toByteArray(), null);
+        }
+    }
+
+    /**
+     * A page of concerts or performers, encoded as a UTF-8 JSON array.
+     */
+    public static final class Page {
+        private final byte[] json;
+        private final Long nextAfter;
+
+        private Page(byte[] json, Long nextAfter) {
+            this.json = json;
+            this.nextAfter = nextAfter;
+        }
+
+        public byte[] getBytes() {
+            return json;
+        }
+
+        /**
+         * @return the cursor for the next page (the id of the last item on this page), or null if this is the last page
+         */
+        public Long getNextAfter() {
+            return nextAfter;
+        }
+    }
+
+    /**
+     * A catalog resource encoded as UTF-8 JSON, and as gzip-compressed UTF-8 JSON. The arrays must not be modified.
+     */
+    public static final class EncodedJson {
+        private final byte[] identity;
+        private final byte[] gzip;
+
+        private EncodedJson(byte[] identity) {
+            this.identity = identity;
+            this.gzip = ContentEncoding.gzip(identity);
+        }
+
+        public byte[] getBytes(boolean gzip) {
+            return gzip ? this.gzip : identity;
+        }
+    }
+}
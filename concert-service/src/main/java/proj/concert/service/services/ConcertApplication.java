@@ -3,6 +3,7 @@ package proj.concert.service.services;
 import javax.ws.rs.ApplicationPath;
 import javax.ws.rs.core.Application;
 
+import proj.concert.service.jaxrs.CompressionInterceptor;
 import proj.concert.service.util.ConcertUtils;
 
 import java.util.HashSet;
@@ -20,6 +21,8 @@ public class ConcertApplication extends Application {
 
     public ConcertApplication() {
         classes.add(TestResource.class);
+        classes.add(MetricsResource.class);
+        classes.add(CompressionInterceptor.class);
         singleton.add(new ConcertResource());
         singleton.add(PersistenceManager.instance());
         ConcertUtils.initConcerts();
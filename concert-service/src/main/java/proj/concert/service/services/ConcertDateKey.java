@@ -0,0 +1,41 @@
+package proj.concert.service.services;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
+import java.time.LocalDateTime;
+
+/**
+ * Identifies one date of one concert, for use as a map key.
+ */
+final class ConcertDateKey {
+    final long concertId;
+    final LocalDateTime date;
+
+    ConcertDateKey(long concertId, LocalDateTime date) {
+        this.concertId = concertId;
+        this.date = date;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+
+        if (o == null || getClass() != o.getClass()) return false;
+
+        ConcertDateKey key = (ConcertDateKey) o;
+
+        return new EqualsBuilder()
+                .append(concertId, key.concertId)
+                .append(date, key.date)
+                .isEquals();
+    }
+
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder(17, 37)
+                .append(concertId)
+                .append(date)
+                .toHashCode();
+    }
+}
@@ -2,36 +2,73 @@ package proj.concert.service.services;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.hibernate.annotations.QueryHints;
 import proj.concert.common.dto.*;
 import proj.concert.service.domain.*;
 import proj.concert.service.mapper.*;
 
 import javax.persistence.*;
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.*;
 import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
+import javax.ws.rs.container.ConnectionCallback;
 import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Link;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.NewCookie;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
+import java.math.BigDecimal;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
-import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import proj.concert.common.types.BookingStatus;
 import proj.concert.service.jaxrs.LocalDateTimeParam;
+import proj.concert.service.jaxrs.ContentEncoding;
+import proj.concert.service.util.SeatAvailabilityIndex;
+import proj.concert.service.util.ServiceConfig;
+import proj.concert.service.util.TheatreLayout;
 import java.time.LocalDateTime;
 
 class ConcertSubscription {
     public ConcertInfoSubscriptionDTO info;
     public AsyncResponse sub;
+    public long userId;
 
-    public ConcertSubscription(ConcertInfoSubscriptionDTO info, AsyncResponse sub) {
+    public ConcertSubscription(ConcertInfoSubscriptionDTO info, AsyncResponse sub, long userId) {
         this.info = info;
         this.sub = sub;
+        this.userId = userId;
     }
 }
 
@@ -41,107 +78,77 @@ class ConcertSubscription {
 public class ConcertResource {
     private static Logger LOGGER = LoggerFactory.getLogger(ConcertResource.class);
     private static final String AUTH_COOKIE = "auth";
-    private final List<ConcertSubscription> concertSubscriptions = new Vector<>();
+    private static final String SEAT_MAP_VERSION_HEADER = "Seat-Map-Version";
+    private static final int BEST_AVAILABLE_ATTEMPTS = 3;
+    private final SubscriptionRegistry concertSubscriptions = new SubscriptionRegistry();
+    private final NotificationDispatcher notifications = new NotificationDispatcher(concertSubscriptions);
+    private final SeatStreams seatStreams = new SeatStreams();
+    private final IdempotencyCache idempotentBookings = new IdempotencyCache();
+    private final AuthTokens authTokens = new AuthTokens(ServiceConfig.AUTH_TOKEN_KEYS);
 
     /*
      GET /concerts/{id}
      Retrieves a Concert based on its unique id.
-     The HTTP response message has a status code of either 200 or 404, depending on whether the specified Concert is found.
+     The HTTP response message has a status code of either 200 or 404, depending on whether the specified Concert is found,
+     or 304 if the client's copy is current.
      */
     @GET
     @Path("/concerts/{id}")
-    public Response getConcertById(@PathParam("id") Long id) {
-        EntityManager em = PersistenceManager.instance().createEntityManager();
-
-        try {
-            em.getTransaction().begin();
-            LOGGER.info("Retrieving concert ID=" + id);
-            Concert concert = em.find(Concert.class, id);
-            em.getTransaction().commit();
-
-            if (concert == null) {
-                LOGGER.debug("Concert ID=" + id + " does not exist.");
-                return Response.status(Response.Status.NOT_FOUND).build();
-            }
-
-            return Response.ok(ConcertMapper.toDTO(concert)).build();
-        } finally {
-            em.close();
-        }
+    public Response getConcertById(@PathParam("id") Long id, @Context Request request,
+                                   @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding) {
+        LOGGER.info("Retrieving concert ID=" + id);
+        return catalogResponse(request, acceptEncoding, catalog -> catalog.getConcert(id));
     }
 
     /*
-     GET /concerts
-     Retrieves all Concerts.
-     The HTTP response message has a status code of 200.
+     GET /concerts?limit={limit}&after={id}
+     Retrieves all Concerts, or a page of them with a Link header to the next page.
+     The HTTP response message has a status code of either 200, 304 or 400, if the limit isn't positive.
      */
     @GET
     @Path("/concerts")
-    public Response retrieveAllConcerts() {
-        EntityManager em = PersistenceManager.instance().createEntityManager();
-        try {
-            em.getTransaction().begin();
-            LOGGER.info("Retrieving all concerts...");
-            TypedQuery<Concert> concertQuery = em.createQuery("select c from Concert c", Concert.class);
-            List<Concert> concerts = concertQuery.getResultList();
-            em.getTransaction().commit();
-            List<ConcertDTO> resultList = new ArrayList<>(concerts.stream().map(ConcertMapper::toDTO).collect(Collectors.toList()));
-            return Response
-                    .ok(resultList)
-                    .build();
-        } finally {
-            em.close();
+    public Response retrieveAllConcerts(@Context Request request,
+                                        @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding,
+                                        @QueryParam("limit") Integer limit, @QueryParam("after") Long after,
+                                        @Context UriInfo uriInfo) {
+        LOGGER.info("Retrieving all concerts...");
+        if (limit == null && after == null) {
+            return catalogResponse(request, acceptEncoding, CatalogCache.Snapshot::getConcerts);
         }
+        return catalogPageResponse(request, acceptEncoding, uriInfo, limit,
+                catalog -> catalog.getConcertPage(after == null ? 0 : after, pageSize(limit)));
     }
 
     /*
      GET /concerts/summaries
      Retrieves the Concert summaries.
-     The HTTP response has a status code of either 200 or 404, depending on whether the concert summaries are found.
+     The HTTP response has a status code of 200.
      */
     @GET
     @Path("/concerts/summaries")
-    public Response retrieveAllConcertsSummaries(){
-        EntityManager em = PersistenceManager.instance().createEntityManager();
-        try {
-            em.getTransaction().begin();
-            LOGGER.info("Retrieving concerts summaries...");
-            // get the concerts
-            TypedQuery<Concert> concertQuery = em.createQuery("select c from Concert c", Concert.class);
-            List<Concert> concerts = concertQuery.getResultList();
-            em.getTransaction().commit();
-            // map concerts to ConcertSummaryDTO
-            List<ConcertSummaryDTO> resultList = new ArrayList<>(concerts.stream().map(ConcertSummaryMapper::toDTO).collect(Collectors.toList()));
-            return Response
-                    .ok(resultList)
-                    .build();
-        } finally {
-            em.close();
-        }
+    public Response retrieveAllConcertsSummaries(@Context Request request,
+                                                 @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding) {
+        LOGGER.info("Retrieving concerts summaries...");
+        return catalogResponse(request, acceptEncoding, CatalogCache.Snapshot::getConcertSummaries);
     }
 
     /*
-     GET /performers
-     Retrieves all Performers.
-     The HTTP response message has a status code of 200.
+     GET /performers?limit={limit}&after={id}
+     Retrieves all Performers, or a page of them with a Link header to the next page.
+     The HTTP response message has a status code of either 200, 304 or 400, if the limit isn't positive.
      */
     @GET
     @Path("/performers")
-    public Response retrieveAllPerformers() {
-        EntityManager em = PersistenceManager.instance().createEntityManager();
-        try {
-            em.getTransaction().begin();
-            LOGGER.info("Retrieving all performers...");
-            TypedQuery<Performer> performerQuery = em.createQuery("select p from Performer p", Performer.class);
-            List<Performer> performers = performerQuery.getResultList();
-            em.getTransaction().commit();
-            List<PerformerDTO> resultList = new ArrayList<>(performers.stream().map(PerformerMapper::toDTO).collect(Collectors.toList()));
-            return Response
-                    .ok(resultList)
-                    .build();
-        } finally {
-            em.close();
+    public Response retrieveAllPerformers(@Context Request request,
+                                          @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding,
+                                          @QueryParam("limit") Integer limit, @QueryParam("after") Long after,
+                                          @Context UriInfo uriInfo) {
+        LOGGER.info("Retrieving all performers...");
+        if (limit == null && after == null) {
+            return catalogResponse(request, acceptEncoding, CatalogCache.Snapshot::getPerformers);
         }
+        return catalogPageResponse(request, acceptEncoding, uriInfo, limit,
+                catalog -> catalog.getPerformerPage(after == null ? 0 : after, pageSize(limit)));
     }
 
     /*
@@ -151,120 +158,254 @@ public class ConcertResource {
      */
     @GET
     @Path("/performers/{id}")
-    public Response getPerformerById(@PathParam("id") Long id) {
-        EntityManager em = PersistenceManager.instance().createEntityManager();
-
-        try {
-            em.getTransaction().begin();
-            LOGGER.info("Retrieving performer ID=" + id);
-            // use em.find() to get matched performers base on unique id
-            Performer performer = em.find(Performer.class, id);
-            em.getTransaction().commit();
-
-            // return not found when no matched
-            if (performer == null) {
-                LOGGER.debug("Performer ID=" + id + " does not exist.");
-                return Response.status(Response.Status.NOT_FOUND).build();
-            }
-
-            return Response.ok(PerformerMapper.toDTO(performer)).build();
-        } finally {
-            em.close();
-        }
+    public Response getPerformerById(@PathParam("id") Long id, @Context Request request,
+                                     @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding) {
+        LOGGER.info("Retrieving performer ID=" + id);
+        return catalogResponse(request, acceptEncoding, catalog -> catalog.getPerformer(id));
     }
 
     /*
-     GET /bookings
-     Retrieves all booking from a specific user.
-     The HTTP response message has a status code of either 200 or 401, depending on whether the user is authenticated or not.
+     GET /bookings?limit={limit}&after={id}
+     Retrieves all booking from a specific user, or a page of them with a Link header to the next page.
+     The HTTP response message has a status code of either 200, 400 or 401, depending on whether the limit is positive and
+     the user is authenticated.
      */
     @GET
     @Path("/bookings")
-    public Response retrieveAllBookings(@CookieParam(AUTH_COOKIE) Cookie authCookie) {
-        EntityManager em = PersistenceManager.instance().createEntityManager();
-        User user = getUser(em, authCookie);
+    public Response retrieveAllBookings(@CookieParam(AUTH_COOKIE) Cookie authCookie,
+                                        @QueryParam("limit") Integer limit, @QueryParam("after") Long after,
+                                        @Context UriInfo uriInfo, @Context HttpServletRequest httpRequest) {
+        if (limit != null && limit < 1) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        EntityManager em = RequestEntityManager.get(httpRequest);
+        UserPrincipal user = getUser(em, authCookie);
         if (user == null) {
-            em.close();
             return Response.status(Response.Status.UNAUTHORIZED).build();
         }
 
         LOGGER.info("Retrieving all bookings...");
-        List<Booking> bookings = em.createQuery("select b from Booking b where b.user=:user", Booking.class)
-                .setParameter("user", user)
-                .getResultList();
+        // Only the columns the DTOs need are selected, so no Booking or Seat entities are loaded into the persistence
+        // context. The bookings are read first, seeking along the (user, id) index so that a deep page costs no more
+        // than the first, and then all of their seats at once.
+        TypedQuery<Object[]> bookingQuery = em.createQuery(
+                "select b.id, b.concertId, b.date from Booking b where b.user.id = :userId and b.id > :after order by b.id",
+                Object[].class)
+                .setParameter("userId", user.getId())
+                .setParameter("after", after == null ? 0 : after);
+        boolean paged = limit != null || after != null;
+        int pageSize = pageSize(limit);
+        if (paged) {
+            // one extra booking tells whether there's another page
+            bookingQuery.setMaxResults(pageSize + 1);
+        }
+        List<Object[]> bookingRows = bookingQuery.getResultList();
 
-        List<BookingDTO> resultList = new ArrayList<>(bookings.stream().map(BookingMapper::toBookingDTO).collect(Collectors.toList()));
-        em.close();
+        Link next = null;
+        if (paged && bookingRows.size() > pageSize) {
+            bookingRows = bookingRows.subList(0, pageSize);
+            next = nextPageLink(uriInfo, pageSize, (Long) bookingRows.get(pageSize - 1)[0]);
+        }
+
+        Map<Long, BookingDTO> bookingsById = new LinkedHashMap<>();
+        for (Object[] bookingRow : bookingRows) {
+            bookingsById.put((Long) bookingRow[0],
+                    new BookingDTO((Long) bookingRow[1], (LocalDateTime) bookingRow[2], new ArrayList<>()));
+        }
+        if (!bookingsById.isEmpty()) {
+            List<Object[]> seatRows = em.createQuery(
+                    "select b.id, s.label, s.price from Booking b join b.seats s where b.id in (:ids)", Object[].class)
+                    .setParameter("ids", bookingsById.keySet())
+                    .getResultList();
+            for (Object[] seatRow : seatRows) {
+                bookingsById.get((Long) seatRow[0]).getSeats().add(new SeatDTO((String) seatRow[1], (BigDecimal) seatRow[2]));
+            }
+        }
         return Response
-                .ok(resultList)
+                .ok(new ArrayList<>(bookingsById.values()))
+                .links(next == null ? new Link[0] : new Link[]{next})
                 .build();
     }
 
     /*
      POST /bookings
-     Attempts a booking.
+     Attempts a booking, or books the best available numSeats adjacent seats if no seats are named.
      The HTTP response message has a status code of either 201, 400, 401, 403 depending on whether the user is authenticated,
      if the concert or date is wrong, or if the number of seats requested don't exist.
      */
     @POST
     @Path("/bookings")
-    public Response createBooking(@CookieParam(AUTH_COOKIE) Cookie authCookie, BookingRequestDTO bookingDto) {
-        // This has no protection against double booking as far as I am aware, would appreciate some guidance on how to implement that.
+    public void createBooking(@CookieParam(AUTH_COOKIE) Cookie authCookie,
+                              @HeaderParam(IdempotencyCache.IDEMPOTENCY_KEY_HEADER) String idempotencyKey,
+                              @HeaderParam(WaitingRoom.ADMISSION_TOKEN_HEADER) String admissionToken,
+                              @Context UriInfo uriInfo,
+                              @Suspended AsyncResponse asyncResponse,
+                              BookingRequestDTO bookingDto) {
+        // responses built off the request thread can't see the request's base URI, so locations are resolved here
+        URI baseUri = uriInfo.getBaseUri();
+
+        CompletionStage<Response> response;
+        if (authCookie == null || idempotencyKey == null) {
+            response = makeAdmittedBooking(authCookie, admissionToken, bookingDto);
+        } else {
+            // a retried request gets the original outcome back, without touching the database
+            int fingerprint = Objects.hash(bookingDto.getConcertId(), bookingDto.getDate(), bookingDto.getSeatLabels(),
+                    bookingDto.getNumSeats(), bookingDto.getPriceBand());
+            response = idempotentBookings.execute(authCookie.getValue(), idempotencyKey, fingerprint,
+                    () -> makeAdmittedBooking(authCookie, admissionToken, bookingDto));
+        }
+
+        response.whenComplete((r, e) -> {
+            if (e != null) {
+                asyncResponse.resume(e);
+            } else if (r.getLocation() != null && !r.getLocation().isAbsolute()) {
+                asyncResponse.resume(Response.fromResponse(r)
+                        .location(UriBuilder.fromUri(baseUri).path(r.getLocation().getPath()).build())
+                        .build());
+            } else {
+                asyncResponse.resume(r);
+            }
+        });
+    }
+
+    // Makes a booking if the waiting room admits the session. Once the booking is made, the session leaves the waiting
+    // room so that the next in line can be admitted. The admission is kept from when it was checked, as its token may
+    // have expired by the time the booking is made.
+    private CompletionStage<Response> makeAdmittedBooking(Cookie authCookie, String admissionToken, BookingRequestDTO bookingDto) {
+        if (!WaitingRoom.isEnabled()) {
+            return makeBooking(authCookie, bookingDto);
+        }
+
+        WaitingRoom.Admission admission = WaitingRoom.instance().get(admissionToken);
+        Response notAdmitted = checkAdmission(admission, bookingDto.getDate());
+        if (notAdmitted != null) {
+            return CompletableFuture.completedFuture(notAdmitted);
+        }
+
+        return makeBooking(authCookie, bookingDto).thenApply(response -> {
+            if (response.getStatus() == Response.Status.CREATED.getStatusCode()) {
+                WaitingRoom.instance().leave(admission);
+            }
+            return response;
+        });
+    }
+
+    // Makes a booking with whichever booking engine is configured. Only the sequencer engine answers asynchronously;
+    // the others have finished by the time this returns.
+    private CompletionStage<Response> makeBooking(Cookie authCookie, BookingRequestDTO bookingDto) {
         EntityManager em = PersistenceManager.instance().createEntityManager();
-        User user = getUser(em, authCookie);
+        UserPrincipal user = getUser(em, authCookie);
 
         if (user == null) {
             em.close();
-            return Response.status(Response.Status.UNAUTHORIZED).build();
+            return CompletableFuture.completedFuture(Response.status(Response.Status.UNAUTHORIZED).build());
         }
 
         em.getTransaction().begin();
 
-        Concert concert = em.find(Concert.class, bookingDto.getConcertId());
+        Concert concert = em.find(Concert.class, bookingDto.getConcertId(), PersistenceManager.fetchGraph(em, Concert.DATES_GRAPH));
 
         if (concert == null) {
             em.getTransaction().rollback();
             em.close();
-            return Response.status(Response.Status.BAD_REQUEST).build();
+            return CompletableFuture.completedFuture(Response.status(Response.Status.BAD_REQUEST).build());
         }
 
-        if (!concert.getDates().contains(bookingDto.getDate())) {
+        if (!concert.getDates().contains(bookingDto.getDate()) || hasUnknownSeatLabels(bookingDto)) {
             em.getTransaction().rollback();
             em.close();
-            return Response.status(Response.Status.BAD_REQUEST).build();
+            return CompletableFuture.completedFuture(Response.status(Response.Status.BAD_REQUEST).build());
         }
 
-        List<Seat> seats = em.createQuery("select s from Seat s where s.label in (:seatLabels) and s.date=:date", Seat.class)
-                .setParameter("seatLabels", bookingDto.getSeatLabels())
-                .setParameter("date", bookingDto.getDate())
-                .setLockMode(LockModeType.PESSIMISTIC_WRITE)
-                .getResultList();
+        em.getTransaction().commit();
 
-        for(Seat seat : seats) {
-            if (seat.isBooked()) {
-                em.getTransaction().rollback();
-                em.close();
-                return Response.status(Response.Status.FORBIDDEN).build();
+        // seats held by the user themselves can be booked, but not seats held by anyone else
+        long[] ownHeld = SeatHoldRegistry.instance().heldBy(user.getId(), bookingDto.getDate());
+
+        if (ServiceConfig.BOOKING_ENGINE == ServiceConfig.BookingEngine.SEQUENCER) {
+            em.close();
+            return createBookingInSequence(user, bookingDto, ownHeld);
+        }
+
+        try {
+            if (bookingDto.getSeatLabels().isEmpty() && bookingDto.getNumSeats() > 0) {
+                return CompletableFuture.completedFuture(createBestAvailableBooking(em, user, bookingDto, ownHeld));
             }
+            return CompletableFuture.completedFuture(bookSeats(em, user, bookingDto, ownHeld));
+        } finally {
+            em.close();
         }
+    }
 
-        LOGGER.info("Booking seats...");
+    /*
+     POST /bookings/batch
+     Attempts a list of bookings, returning the status code POST /bookings would give each one.
+     The HTTP response message has a status code of either 200 or 401, depending on whether the user is authenticated.
+     */
+    @POST
+    @Path("/bookings/batch")
+    public Response createBookings(@CookieParam(AUTH_COOKIE) Cookie authCookie, List<BookingRequestDTO> bookingDtos,
+                                   @Context HttpServletRequest httpRequest) {
+        EntityManager em = RequestEntityManager.get(httpRequest);
+        UserPrincipal user = getUser(em, authCookie);
+        if (user == null) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
 
-        for(Seat seat : seats) {
-            seat.setIsBooked(true);
+        em.getTransaction().begin();
+
+        // validate every request against one load of the concerts involved
+        Set<Long> concertIds = bookingDtos.stream().map(BookingRequestDTO::getConcertId).collect(Collectors.toSet());
+        Map<Long, Concert> concerts = new HashMap<>();
+        if (!concertIds.isEmpty()) {
+            TypedQuery<Concert> concertQuery = em.createQuery(
+                    "select distinct c from Concert c where c.id in (:ids)", Concert.class)
+                    .setHint(QueryHints.PASS_DISTINCT_THROUGH, false);
+            PersistenceManager.fetchGraph(em, Concert.DATES_GRAPH).forEach(concertQuery::setHint);
+            for (Concert concert : concertQuery
+                    .setParameter("ids", concertIds)
+                    .getResultList()) {
+                concerts.put(concert.getId(), concert);
+            }
         }
 
-        Booking booking = new Booking(bookingDto.getConcertId(), bookingDto.getDate(), seats, user);
+        BookingResultDTO[] results = new BookingResultDTO[bookingDtos.size()];
+        List<Integer> validRequests = new ArrayList<>();
+        for (int i = 0; i < bookingDtos.size(); i++) {
+            BookingRequestDTO bookingDto = bookingDtos.get(i);
+            Concert concert = concerts.get(bookingDto.getConcertId());
+            if (concert == null || !concert.getDates().contains(bookingDto.getDate()) || hasUnknownSeatLabels(bookingDto)
+                    || (bookingDto.getSeatLabels().isEmpty() && bookingDto.getNumSeats() > 0)) {
+                results[i] = new BookingResultDTO(Response.Status.BAD_REQUEST.getStatusCode(), null);
+            } else {
+                validRequests.add(i);
+            }
+        }
 
-        em.persist(booking);
         em.getTransaction().commit();
 
-        em.getTransaction().begin();
-        issueNotifications(em, bookingDto.getConcertId(), bookingDto.getDate());
-        em.getTransaction().commit();
+        if (ServiceConfig.BOOKING_ENGINE == ServiceConfig.BookingEngine.SEQUENCER) {
+            createBookingsInSequence(user, bookingDtos, validRequests, results);
+        } else if (ServiceConfig.BOOKING_ENGINE == ServiceConfig.BookingEngine.CAS) {
+            createBookingsInMemory(user, bookingDtos, validRequests, results);
+        } else {
+            createBookingsWithLocks(em, user, bookingDtos, validRequests, results);
+        }
 
-        em.close();
-        return Response.created(URI.create("/concert-service/bookings/" + booking.getId())).build();
+        // notify subscribers once per affected date, rather than once per booking
+        Set<BookingRequestDTO> affectedDates = new TreeSet<>(
+                Comparator.comparing(BookingRequestDTO::getDate).thenComparing(BookingRequestDTO::getConcertId));
+        for (int i : validRequests) {
+            if (results[i].getStatus() == Response.Status.CREATED.getStatusCode()) {
+                affectedDates.add(bookingDtos.get(i));
+            }
+        }
+        for (BookingRequestDTO affected : affectedDates) {
+            issueNotifications(affected.getConcertId(), affected.getDate());
+        }
+
+        return Response.ok(Arrays.asList(results)).build();
     }
 
     /*
@@ -274,73 +415,222 @@ public class ConcertResource {
      */
     @GET
     @Path("/bookings/{id}")
-    public Response getBookingById(@CookieParam(AUTH_COOKIE) Cookie authCookie, @PathParam("id") Long id) {
-        EntityManager em = PersistenceManager.instance().createEntityManager();
-        User user = getUser(em, authCookie);
+    public Response getBookingById(@CookieParam(AUTH_COOKIE) Cookie authCookie, @PathParam("id") Long id,
+                                   @Context HttpServletRequest httpRequest) {
+        EntityManager em = RequestEntityManager.get(httpRequest);
+        UserPrincipal user = getUser(em, authCookie);
 
         if (user == null) {
             return Response.status(Response.Status.UNAUTHORIZED).build();
         }
 
-        Booking booking;
+        Booking booking = em.find(Booking.class, id, PersistenceManager.fetchGraph(em, Booking.SEATS_GRAPH));
 
-        try {
-            booking = em.find(Booking.class, id);
-        } catch (javax.persistence.NoResultException e) {
-            em.close();
+        if (booking == null) {
             return Response.status(Response.Status.NOT_FOUND).build();
         }
 
-        if (booking.getUser().getUsername() != user.getUsername()) {
-            em.close();
+        if (booking.getUser().getId() != user.getId()) {
             return Response.status(Response.Status.FORBIDDEN).build();
         }
 
-        em.close();
-
         return Response.ok(BookingMapper.toBookingDTO(booking)).build();
 
     }
 
     /*
-     GET /seats/{date}
-     Retrieves specified seats on a particular date.
-     The HTTP response message has a status code of either 200.
+     POST /holds
+     Holds seats for the user for a limited time, so that nobody else can book them in the meantime.
+     The HTTP response message has a status code of either 201, 400, 401, 403 depending on whether the user is authenticated,
+     if the concert, date or seats are wrong, or if any of the seats are already booked or held.
+     */
+    @POST
+    @Path("/holds")
+    public Response createHold(@CookieParam(AUTH_COOKIE) Cookie authCookie,
+                               @HeaderParam(WaitingRoom.ADMISSION_TOKEN_HEADER) String admissionToken,
+                               @Context HttpServletRequest httpRequest,
+                               BookingRequestDTO holdDto) {
+        Response notAdmitted = checkAdmission(admissionToken, holdDto.getDate());
+        if (notAdmitted != null) {
+            return notAdmitted;
+        }
+
+        EntityManager em = RequestEntityManager.get(httpRequest);
+        UserPrincipal user = getUser(em, authCookie);
+        if (user == null) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+
+        Concert concert = em.find(Concert.class, holdDto.getConcertId(), PersistenceManager.fetchGraph(em, Concert.DATES_GRAPH));
+        if (concert == null || !concert.getDates().contains(holdDto.getDate())) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        if (holdDto.getSeatLabels().isEmpty()
+                || holdDto.getSeatLabels().stream().anyMatch(label -> TheatreLayout.seatIndex(label) < 0)) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        SeatHoldRegistry.SeatHold hold = SeatHoldRegistry.instance()
+                .hold(user.getId(), holdDto.getConcertId(), holdDto.getDate(), holdDto.getSeatLabels());
+        if (hold == null) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+
+        LOGGER.info("Holding seats until " + hold.getExpiresAt());
+        return Response.created(URI.create("/concert-service/holds/" + hold.getId()))
+                .entity(SeatHoldMapper.toDTO(hold))
+                .build();
+    }
+
+    /*
+     DELETE /holds/{id}
+     Releases a hold, making its seats available to everyone again.
+     The HTTP response message has a status code of either 204, 401, 403 or 404, depending on whether the user is authenticated,
+     and whether the hold exists and belongs to them.
+     */
+    @DELETE
+    @Path("/holds/{id}")
+    public Response releaseHold(@CookieParam(AUTH_COOKIE) Cookie authCookie, @PathParam("id") Long id,
+                                @Context HttpServletRequest httpRequest) {
+        UserPrincipal user = getUser(RequestEntityManager.get(httpRequest), authCookie);
+        if (user == null) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+
+        SeatHoldRegistry.SeatHold hold = SeatHoldRegistry.instance().get(id);
+        if (hold == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        if (hold.getUserId() != user.getId()) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+
+        SeatHoldRegistry.instance().release(id);
+        return Response.noContent().build();
+    }
+
+    /*
+     GET /seats/{date}?since={version}
+     Retrieves specified seats on a particular date, or only the seats changed since the given Seat-Map-Version.
+     The HTTP response message has a status code of either 200, or 304 if nothing has changed since the given version.
      */
     @GET
     @Path("/seats/{time}")
-    public Response getSeatByTime(@PathParam("time") LocalDateTimeParam time, @QueryParam("status")BookingStatus status){
-        EntityManager em = PersistenceManager.instance().createEntityManager();
-
-        em.getTransaction().begin();
+    public Response getSeatByTime(@PathParam("time") LocalDateTimeParam time, @QueryParam("status")BookingStatus status,
+                                  @QueryParam("since") Long since,
+                                  @HeaderParam(WaitingRoom.ADMISSION_TOKEN_HEADER) String admissionToken){
         LocalDateTime date = time.getLocalDateTime();
-        List<Seat> seats = new ArrayList<>();
-        LOGGER.info("Retrieving seats...");
-        List<Seat> unfilteredSeats = getSeats(em, date);
-        // if status is Any return all the seats
-        if (status == BookingStatus.Any){
-            seats = unfilteredSeats;
-        }
-        else {
-            boolean booked = status == BookingStatus.Booked;
-            // add booked seats to List
-            for(Seat seat : unfilteredSeats) {
-                if (seat.isBooked() == booked) {
-                    seats.add(seat);
-                }
-            }
+        Response notAdmitted = checkAdmission(admissionToken, date);
+        if (notAdmitted != null) {
+            return notAdmitted;
         }
+        LOGGER.info("Retrieving seats...");
 
-        em.getTransaction().commit();
-        em.close();
+        if (since != null) {
+            return getSeatChanges(date, since);
+        }
 
-        // map the selected seats to SeatDTO
-        List<SeatDTO> resultList = new ArrayList<>(seats.stream().map(SeatMapper::toDTO).collect(Collectors.toList()));
+        // answered from the in-memory availability index, so seat map refreshes never take DB locks. The version is
+        // read first, so that any change it doesn't include is sent again by a later ?since= request.
+        long version = SeatAvailabilityIndex.instance().version(date);
+        int[] seats = SeatAvailabilityIndex.instance().seats(date, status);
+        List<SeatDTO> resultList = new ArrayList<>();
+        if (seats != null) {
+            for (int seat : seats) {
+                resultList.add(SeatMapper.toDTO(seat));
+            }
+        }
         return Response
                 .ok(resultList)
+                .header(SEAT_MAP_VERSION_HEADER, Math.max(version, 0))
+                .build();
+    }
+
+    private Response getSeatChanges(LocalDateTime date, long since) {
+        SeatAvailabilityIndex.SeatChanges changes = SeatAvailabilityIndex.instance().changesSince(date, since);
+        if (changes == null) {
+            return Response.ok(new SeatChangesDTO(0, true, new ArrayList<>(), new ArrayList<>())).build();
+        }
+        if (!changes.isFull() && changes.getVersion() == since) {
+            return Response.notModified().header(SEAT_MAP_VERSION_HEADER, since).build();
+        }
+        return Response
+                .ok(SeatChangesMapper.toDTO(changes))
+                .header(SEAT_MAP_VERSION_HEADER, changes.getVersion())
+                .build();
+    }
+
+    /*
+     GET /seats/{date}/stream
+     Streams the unavailable seats on a particular date, and then changes to them, as server-sent events.
+     The HTTP response message has a status code of either 200 or 404, depending on whether the date exists.
+     */
+    @GET
+    @Path("/seats/{time}/stream")
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    public void streamSeatsByTime(@PathParam("time") LocalDateTimeParam time, @Context SseEventSink sink, @Context Sse sse) {
+        LocalDateTime date = time.getLocalDateTime();
+        if (!SeatAvailabilityIndex.instance().contains(date)) {
+            throw new NotFoundException();
+        }
+        seatStreams.open(date, sink, sse);
+    }
+
+    /*
+     POST /waiting-room/{date}
+     Joins the waiting room for a concert date, returning a token with its position in the queue and estimated wait.
+     The HTTP response message has a status code of either 201, 400 or 404, depending on whether the date is valid and the
+     waiting room is turned on.
+     */
+    @POST
+    @Path("/waiting-room/{time}")
+    public Response joinWaitingRoom(@PathParam("time") LocalDateTimeParam time) {
+        if (!WaitingRoom.isEnabled()) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        LocalDateTime date = time.getLocalDateTime();
+        if (!SeatAvailabilityIndex.instance().contains(date)) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        WaitingRoom.Admission admission = WaitingRoom.instance().join(date);
+        return Response.created(URI.create("/concert-service/waiting-room/" + LocalDateTimeParam.FORMATTER.format(date) + "/" + admission.getToken()))
+                .entity(AdmissionMapper.toDTO(admission))
                 .build();
     }
 
+    /*
+     GET /waiting-room/{date}/{token}
+     Retrieves a waiting room token's position in the queue.
+     The HTTP response message has a status code of either 200 or 404, depending on whether the token is in the waiting room.
+     */
+    @GET
+    @Path("/waiting-room/{time}/{token}")
+    public Response getWaitingRoomPosition(@PathParam("time") LocalDateTimeParam time, @PathParam("token") String token) {
+        WaitingRoom.Admission admission = WaitingRoom.instance().get(token);
+        if (admission == null || !admission.getDate().equals(time.getLocalDateTime())) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return Response.ok(AdmissionMapper.toDTO(admission)).build();
+    }
+
+    /*
+     DELETE /waiting-room/{date}/{token}
+     Leaves the waiting room, giving up the token's place.
+     The HTTP response message has a status code of either 204 or 404, depending on whether the token is in the waiting room.
+     */
+    @DELETE
+    @Path("/waiting-room/{time}/{token}")
+    public Response leaveWaitingRoom(@PathParam("time") LocalDateTimeParam time, @PathParam("token") String token) {
+        WaitingRoom.Admission admission = WaitingRoom.instance().get(token);
+        if (admission == null || !admission.getDate().equals(time.getLocalDateTime())) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        WaitingRoom.instance().leave(admission);
+        return Response.noContent().build();
+    }
+
     /*
      POST /login
      Logs the user into the database.
@@ -348,8 +638,12 @@ public class ConcertResource {
      */
     @POST
     @Path("/login")
-    public Response login(UserDTO userDTO) {
-        EntityManager em = PersistenceManager.instance().createEntityManager();
+    public Response login(UserDTO userDTO, @Context HttpServletRequest httpRequest) {
+        EntityManager em = RequestEntityManager.get(httpRequest);
+        if (ServiceConfig.AUTH_MODE == ServiceConfig.AuthMode.TOKEN) {
+            return loginWithToken(em, userDTO);
+        }
+
         em.getTransaction().begin();
         try {
             TypedQuery<User> userQuery = em.createQuery("select u from User u where u.username = :username and u.password = :password", User.class)
@@ -357,6 +651,7 @@ public class ConcertResource {
                     .setParameter("password", userDTO.getPassword())
                     .setLockMode(LockModeType.OPTIMISTIC_FORCE_INCREMENT);
             User user = userQuery.getSingleResult();
+            UUID oldSessionId = user.getSessionId();
             UUID sessionId = UUID.randomUUID();
             try {
                 user.setSessionId(sessionId);
@@ -366,34 +661,73 @@ public class ConcertResource {
             NewCookie newCookie = new NewCookie(AUTH_COOKIE, sessionId.toString());
             LOGGER.info("Generated auth cookie for the new user " + user.getUsername());
             em.getTransaction().commit();
+            SessionCache.instance().loggedIn(oldSessionId, sessionId, new UserPrincipal(user.getId(), user.getUsername()));
             return Response.ok(user).cookie(newCookie).build();
         } catch (javax.persistence.NoResultException e) {
             em.getTransaction().rollback();
             // check whether the user credential is correct or not
             return Response.status(Response.Status.UNAUTHORIZED).build();
-        } finally {
-            em.close();
         }
     }
 
+    /*
+     POST /logout
+     Logs the user out, so their auth cookie no longer authenticates them, and expires the cookie.
+     The HTTP response message has a status code of either 204 or 401, if the user isn't logged in.
+     */
+    @POST
+    @Path("/logout")
+    public Response logout(@CookieParam(AUTH_COOKIE) Cookie authCookie, @Context HttpServletRequest httpRequest) {
+        NewCookie expiredCookie = new NewCookie(new Cookie(AUTH_COOKIE, ""), null, 0, false);
+        if (authCookie == null) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+        if (ServiceConfig.AUTH_MODE == ServiceConfig.AuthMode.TOKEN) {
+            if (!authTokens.revoke(authCookie.getValue())) {
+                return Response.status(Response.Status.UNAUTHORIZED).build();
+            }
+            return Response.noContent().cookie(expiredCookie).build();
+        }
+
+        UUID sessionId;
+        try {
+            sessionId = UUID.fromString(authCookie.getValue());
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+        EntityManager em = RequestEntityManager.get(httpRequest);
+        em.getTransaction().begin();
+        int loggedOut = em.createQuery(
+                "update User u set u.sessionId = null, u.version = u.version + 1 where u.sessionId = :sessionId")
+                .setParameter("sessionId", sessionId)
+                .executeUpdate();
+        em.getTransaction().commit();
+        SessionCache.instance().loggedOut(sessionId);
+        if (loggedOut == 0) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+        return Response.noContent().cookie(expiredCookie).build();
+    }
+
     /*
      POST /subscribe/concertInfo
      Subscribes a user to a concert and will be notified if the booked seat capacity exceeds a certain percentage.
      The HTTP response message has a status code of either 200, 400, or 403, depending on whether the user is authenticated,
-     if the concert exists in the database and the date is correct.
+     if the concert exists in the database and the date is correct, or 204, 408, 429 or 503 if the subscription times
+     out or too many are pending.
      */
     @POST
     @Path("subscribe/concertInfo")
     public void subscribeToConcert(@CookieParam(AUTH_COOKIE) Cookie authCookie, @Suspended AsyncResponse sub, ConcertInfoSubscriptionDTO info) {
         EntityManager em = PersistenceManager.instance().createEntityManager();
-        User user = getUser(em, authCookie);
+        UserPrincipal user = getUser(em, authCookie);
         if (user == null) {
             em.close();
             sub.resume(Response.status(Response.Status.UNAUTHORIZED).build());
             return;
         }
 
-        Concert concert = em.find(Concert.class, info.getConcertId());
+        Concert concert = em.find(Concert.class, info.getConcertId(), PersistenceManager.fetchGraph(em, Concert.DATES_GRAPH));
 
         if (concert == null) {
             em.close();
@@ -409,7 +743,29 @@ public class ConcertResource {
 
         em.close();
 
-        concertSubscriptions.add(new ConcertSubscription(info, sub));
+        // however the subscription ends - notified, timed out or disconnected - it leaves the registry. This is all set
+        // up before the subscription is added, as a notification may resume it as soon as it has been.
+        ConcertSubscription subscription = new ConcertSubscription(info, sub, user.getId());
+        sub.register((CompletionCallback) throwable -> concertSubscriptions.remove(subscription));
+        sub.register((ConnectionCallback) disconnected -> concertSubscriptions.remove(subscription));
+        if (ServiceConfig.SUBSCRIPTION_TIMEOUT_SECONDS > 0) {
+            sub.setTimeoutHandler(timedOut -> timedOut.resume(Response.status(ServiceConfig.SUBSCRIPTION_TIMEOUT_STATUS).build()));
+            sub.setTimeout(ServiceConfig.SUBSCRIPTION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+
+        switch (concertSubscriptions.add(subscription)) {
+            case FULL:
+                sub.resume(Response.status(Response.Status.SERVICE_UNAVAILABLE).build());
+                return;
+            case FULL_FOR_USER:
+                sub.resume(Response.status(Response.Status.TOO_MANY_REQUESTS).build());
+                return;
+        }
+
+        // if it ended before it was added, its callbacks found nothing to remove
+        if (sub.isDone()) {
+            concertSubscriptions.remove(subscription);
+        }
     }
 
     // --------------HELPER METHODS--------------
@@ -420,52 +776,486 @@ public class ConcertResource {
     // The browser saves the cookie locally. As long as the user stays logged in, the client needs to send the cookie in all the subsequent requests to the server. The server then compares the session ID stored in the cookie against the one in the database to verify the validity.
     //
     // During the logout operation, the server will make the cookie expire by deleting it from the database.
-    private User getUser(EntityManager em, Cookie cookie) {
+    //
+    // Sessions are cached (see SessionCache), so usually the database isn't asked at all. In TOKEN auth mode, the cookie
+    // is a signed token that names the user itself (see AuthTokens), so the database is never asked.
+    private UserPrincipal getUser(EntityManager em, Cookie cookie) {
         if (cookie == null) {
             return null;
         }
+        if (ServiceConfig.AUTH_MODE == ServiceConfig.AuthMode.TOKEN) {
+            return authTokens.verify(cookie.getValue());
+        }
 
         try {
-            User user = em.createQuery("select user from User user where user.sessionId = :sessionId", User.class)
-                .setParameter("sessionId", UUID.fromString(cookie.getValue()))
-                .getSingleResult();
-
-            return user;
+            return SessionCache.instance().get(UUID.fromString(cookie.getValue()), em);
         } catch (Exception e) {
             return null;
         }
     }
 
-    private List<Seat> getSeats(EntityManager em, LocalDateTime date) {
-        List<Seat> seats = em.createQuery("select s from Seat s where s.date=:date", Seat.class)
-                .setParameter("date", date)
-                .setLockMode(LockModeType.PESSIMISTIC_READ)
-                .getResultList();
-        return seats;
+    // Logs in by issuing a signed token. The credentials are only read, in no transaction, so there's nothing for
+    // concurrent logins to conflict on.
+    private Response loginWithToken(EntityManager em, UserDTO userDTO) {
+        try {
+            User user = em.createQuery("select u from User u where u.username = :username and u.password = :password", User.class)
+                    .setParameter("username", userDTO.getUsername())
+                    .setParameter("password", userDTO.getPassword())
+                    .getSingleResult();
+            NewCookie newCookie = new NewCookie(AUTH_COOKIE, authTokens.issue(user.getId(), user.getUsername()));
+            LOGGER.info("Generated auth token for the user " + user.getUsername());
+            return Response.ok(user).cookie(newCookie).build();
+        } catch (javax.persistence.NoResultException e) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
     }
 
-    private void issueNotifications(EntityManager em, Long concertId, LocalDateTime date) {
-        LOGGER.info("Issuing notifications...");
-        List<Seat> seats = getSeats(em, date);
-        int numberOfBookedSeats = 0;
+    // Whether any of the seats named in the request isn't a seat in the theatre. Such seats would otherwise be left out
+    // of the booking.
+    private static boolean hasUnknownSeatLabels(BookingRequestDTO bookingDto) {
+        return bookingDto.getSeatLabels().stream().anyMatch(label -> TheatreLayout.seatIndex(label) < 0);
+    }
+
+    // Books the seats named in the request, using whichever booking engine is configured.
+    private Response bookSeats(EntityManager em, UserPrincipal user, BookingRequestDTO bookingDto, long[] ownHeld) {
+        if (ServiceConfig.BOOKING_ENGINE == ServiceConfig.BookingEngine.CAS) {
+            return createBookingInMemory(user, bookingDto, ownHeld);
+        }
+        return createBookingWithLocks(em, user, bookingDto, ownHeld);
+    }
+
+    // Books seats by locking their rows, so that concurrent bookings of the same seats are serialized by the database.
+    private Response createBookingWithLocks(EntityManager em, UserPrincipal user, BookingRequestDTO bookingDto, long[] ownHeld) {
+        em.getTransaction().begin();
+
+        List<Seat> seats = em.createQuery("select s from Seat s where s.label in (:seatLabels) and s.date=:date", Seat.class)
+                .setParameter("seatLabels", bookingDto.getSeatLabels())
+                .setParameter("date", bookingDto.getDate())
+                .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                .getResultList();
 
         for(Seat seat : seats) {
             if (seat.isBooked()) {
-                numberOfBookedSeats++;
+                em.getTransaction().rollback();
+                return Response.status(Response.Status.FORBIDDEN).build();
+            }
+        }
+
+        // checks for holds and marks the seats booked in one step, so that a hold placed since can't be overwritten
+        if (!SeatAvailabilityIndex.instance().tryClaim(bookingDto.getDate(), bookingDto.getSeatLabels(), ownHeld)) {
+            em.getTransaction().rollback();
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+
+        LOGGER.info("Booking seats...");
+
+        for(Seat seat : seats) {
+            seat.setIsBooked(true);
+        }
+
+        Booking booking = new Booking(bookingDto.getConcertId(), bookingDto.getDate(), seats, em.getReference(User.class, user.getId()));
+
+        em.persist(booking);
+        try {
+            em.getTransaction().commit();
+        } catch (RuntimeException e) {
+            SeatAvailabilityIndex.instance().release(bookingDto.getDate(), bookingDto.getSeatLabels());
+            throw e;
+        }
+
+        SeatHoldRegistry.instance().consume(user.getId(), bookingDto.getDate(), bookingDto.getSeatLabels());
+
+        issueNotifications(bookingDto.getConcertId(), bookingDto.getDate());
+
+        return Response.created(URI.create("/concert-service/bookings/" + booking.getId())).build();
+    }
+
+    // Books the best available block of adjacent seats in one row, searching the rows given by
+    // bestAvailableRowRanges in order. Blocks are found with the availability index's free-seat trees; if another
+    // booking takes the chosen block first, the search is repeated.
+    private Response createBestAvailableBooking(EntityManager em, UserPrincipal user, BookingRequestDTO bookingDto, long[] ownHeld) {
+        List<int[]> rowRanges = bestAvailableRowRanges(bookingDto);
+        if (rowRanges == null) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        for (int attempt = 0; attempt < BEST_AVAILABLE_ATTEMPTS; attempt++) {
+            int firstSeat = -1;
+            for (int[] rows : rowRanges) {
+                firstSeat = SeatAvailabilityIndex.instance().findFreeRun(bookingDto.getDate(), bookingDto.getNumSeats(),
+                        rows[0], rows[1]);
+                if (firstSeat >= 0) {
+                    break;
+                }
+            }
+            if (firstSeat < 0) {
+                LOGGER.debug("No block of " + bookingDto.getNumSeats() + " seats is available");
+                return Response.status(Response.Status.FORBIDDEN).build();
+            }
+
+            List<String> seatLabels = new ArrayList<>();
+            for (int seat = firstSeat; seat < firstSeat + bookingDto.getNumSeats(); seat++) {
+                seatLabels.add(TheatreLayout.seatLabel(seat));
+            }
+            Response response = bookSeats(em, user,
+                    new BookingRequestDTO(bookingDto.getConcertId(), bookingDto.getDate(), seatLabels), ownHeld);
+            if (response.getStatus() != Response.Status.FORBIDDEN.getStatusCode()) {
+                return response;
+            }
+        }
+        return Response.status(Response.Status.FORBIDDEN).build();
+    }
+
+    // The rows to search for a best available booking, as pairs of first row and the row after the last: the
+    // requested price band first, then the others from the front of the theatre back. Returns null if the requested
+    // price band doesn't exist.
+    private List<int[]> bestAvailableRowRanges(BookingRequestDTO bookingDto) {
+        List<Integer> bandOrder = new ArrayList<>();
+        if (bookingDto.getPriceBand() != null) {
+            int preferred = findPriceBand(bookingDto.getPriceBand());
+            if (preferred < 0) {
+                return null;
+            }
+            bandOrder.add(preferred);
+        }
+        for (int band = 0; band < TheatreLayout.PRICE_BANDS.length; band++) {
+            if (!bandOrder.contains(band)) {
+                bandOrder.add(band);
+            }
+        }
+
+        List<int[]> rowRanges = new ArrayList<>();
+        for (int band : bandOrder) {
+            int fromRow = 0;
+            for (int i = 0; i < band; i++) {
+                fromRow += TheatreLayout.PRICE_BANDS[i].numRows;
+            }
+            rowRanges.add(new int[]{fromRow, fromRow + TheatreLayout.PRICE_BANDS[band].numRows});
+        }
+        return rowRanges;
+    }
+
+    // Matches a price band by name, ignoring case, so that e.g. "gold" matches "Gold Seating".
+    private int findPriceBand(String name) {
+        for (int band = 0; band < TheatreLayout.PRICE_BANDS.length; band++) {
+            if (TheatreLayout.PRICE_BANDS[band].name.toLowerCase().startsWith(name.toLowerCase())) {
+                return band;
+            }
+        }
+        return -1;
+    }
+
+    // Books seats using the CAS engine: the seats are claimed in the availability index (so no row locks are taken),
+    // and the booking is persisted by the write-behind BookingWriter along with other concurrent bookings.
+    private Response createBookingInMemory(UserPrincipal user, BookingRequestDTO bookingDto, long[] ownHeld) {
+        if (!SeatAvailabilityIndex.instance().tryClaim(bookingDto.getDate(), bookingDto.getSeatLabels(), ownHeld)) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+        SeatHoldRegistry.instance().consume(user.getId(), bookingDto.getDate(), bookingDto.getSeatLabels());
+
+        LOGGER.info("Booking seats...");
+
+        // Waits for the write's outcome however long it takes: giving up early would report a failure for a booking
+        // that may still be made. If it does fail, the writer has already released the seats.
+        long bookingId;
+        try {
+            bookingId = BookingWriter.instance()
+                    .submit(user.getId(), bookingDto.getConcertId(), bookingDto.getDate(), bookingDto.getSeatLabels())
+                    .join();
+        } catch (CompletionException e) {
+            LOGGER.error("Booking was not persisted: " + e.getCause());
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+        }
+
+        issueNotifications(bookingDto.getConcertId(), bookingDto.getDate());
+
+        return Response.created(URI.create("/concert-service/bookings/" + bookingId)).build();
+    }
+
+    // Books seats using the sequencer engine: the request is queued for the date's BookingSequencer, and answered once
+    // it has been decided and, if its seats were claimed, persisted. The answer is built off the sequencer and writer
+    // threads, so that neither is held up by notifications or by the client.
+    private CompletionStage<Response> createBookingInSequence(UserPrincipal user, BookingRequestDTO bookingDto, long[] ownHeld) {
+        CompletableFuture<Long> bookingId;
+        if (bookingDto.getSeatLabels().isEmpty() && bookingDto.getNumSeats() > 0) {
+            List<int[]> rowRanges = bestAvailableRowRanges(bookingDto);
+            if (rowRanges == null) {
+                return CompletableFuture.completedFuture(Response.status(Response.Status.BAD_REQUEST).build());
+            }
+            bookingId = BookingSequencer.instance().submitBestAvailable(user.getId(), bookingDto.getConcertId(),
+                    bookingDto.getDate(), bookingDto.getNumSeats(), rowRanges, ownHeld);
+        } else {
+            bookingId = BookingSequencer.instance().submit(user.getId(), bookingDto.getConcertId(),
+                    bookingDto.getDate(), bookingDto.getSeatLabels(), ownHeld);
+        }
+
+        LOGGER.info("Booking seats...");
+
+        return bookingId.handleAsync((id, e) -> {
+            if (e != null) {
+                LOGGER.error("Booking was not made: " + e);
+                return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+            }
+            if (id == null) {
+                return Response.status(Response.Status.FORBIDDEN).build();
+            }
+
+            issueNotifications(bookingDto.getConcertId(), bookingDto.getDate());
+
+            return Response.created(URI.create("/concert-service/bookings/" + id)).build();
+        });
+    }
+
+    // Makes a batch of bookings in one transaction using row locks. To avoid deadlocks with other batches, the seats
+    // for every request are locked up front, one date at a time in date order, with each date's seats in label order.
+    private void createBookingsWithLocks(EntityManager em, UserPrincipal user, List<BookingRequestDTO> bookingDtos,
+                                         List<Integer> validRequests, BookingResultDTO[] results) {
+        SortedMap<LocalDateTime, SortedSet<String>> labelsByDate = new TreeMap<>();
+        for (int i : validRequests) {
+            BookingRequestDTO bookingDto = bookingDtos.get(i);
+            labelsByDate.computeIfAbsent(bookingDto.getDate(), date -> new TreeSet<>()).addAll(bookingDto.getSeatLabels());
+        }
+
+        em.getTransaction().begin();
+
+        Map<LocalDateTime, Map<String, Seat>> seatsByDate = new HashMap<>();
+        Map<LocalDateTime, long[]> ownHeldByDate = new HashMap<>();
+        for (Map.Entry<LocalDateTime, SortedSet<String>> entry : labelsByDate.entrySet()) {
+            Map<String, Seat> seatsByLabel = new HashMap<>();
+            if (!entry.getValue().isEmpty()) {
+                for (Seat seat : em.createQuery("select s from Seat s where s.label in (:seatLabels) and s.date=:date order by s.label", Seat.class)
+                        .setParameter("seatLabels", entry.getValue())
+                        .setParameter("date", entry.getKey())
+                        .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                        .getResultList()) {
+                    seatsByLabel.put(seat.getLabel(), seat);
+                }
+            }
+            seatsByDate.put(entry.getKey(), seatsByLabel);
+            ownHeldByDate.put(entry.getKey(), SeatHoldRegistry.instance().heldBy(user.getId(), entry.getKey()));
+        }
+
+        LOGGER.info("Booking seats for " + validRequests.size() + " requests...");
+
+        Map<Integer, Booking> bookings = new HashMap<>();
+        for (int i : validRequests) {
+            BookingRequestDTO bookingDto = bookingDtos.get(i);
+            Map<String, Seat> seatsByLabel = seatsByDate.get(bookingDto.getDate());
+            List<Seat> seats = bookingDto.getSeatLabels().stream()
+                    .map(seatsByLabel::get)
+                    .filter(seat -> seat != null)
+                    .collect(Collectors.toList());
+
+            // seats booked by an earlier request in this batch count as booked too. The claim checks for holds and
+            // marks the seats booked in one step, so that a hold placed since can't be overwritten.
+            if (seats.stream().anyMatch(Seat::isBooked)
+                    || !SeatAvailabilityIndex.instance().tryClaim(bookingDto.getDate(), bookingDto.getSeatLabels(), ownHeldByDate.get(bookingDto.getDate()))) {
+                results[i] = new BookingResultDTO(Response.Status.FORBIDDEN.getStatusCode(), null);
+                continue;
+            }
+
+            for (Seat seat : seats) {
+                seat.setIsBooked(true);
+            }
+            Booking booking = new Booking(bookingDto.getConcertId(), bookingDto.getDate(), seats, em.getReference(User.class, user.getId()));
+            em.persist(booking);
+            bookings.put(i, booking);
+        }
+
+        try {
+            em.getTransaction().commit();
+        } catch (RuntimeException e) {
+            for (int i : bookings.keySet()) {
+                SeatAvailabilityIndex.instance().release(bookingDtos.get(i).getDate(), bookingDtos.get(i).getSeatLabels());
+            }
+            throw e;
+        }
+
+        for (Map.Entry<Integer, Booking> entry : bookings.entrySet()) {
+            BookingRequestDTO bookingDto = bookingDtos.get(entry.getKey());
+            SeatHoldRegistry.instance().consume(user.getId(), bookingDto.getDate(), bookingDto.getSeatLabels());
+            results[entry.getKey()] = new BookingResultDTO(Response.Status.CREATED.getStatusCode(),
+                    "/concert-service/bookings/" + entry.getValue().getId());
+        }
+    }
+
+    // Makes a batch of bookings using the CAS engine. Every request's seats are claimed before any are queued, so the
+    // BookingWriter will usually persist the whole batch in one of its transactions.
+    private void createBookingsInMemory(UserPrincipal user, List<BookingRequestDTO> bookingDtos,
+                                        List<Integer> validRequests, BookingResultDTO[] results) {
+        Map<Integer, CompletableFuture<Long>> pending = new HashMap<>();
+        for (int i : validRequests) {
+            BookingRequestDTO bookingDto = bookingDtos.get(i);
+            long[] ownHeld = SeatHoldRegistry.instance().heldBy(user.getId(), bookingDto.getDate());
+            if (!SeatAvailabilityIndex.instance().tryClaim(bookingDto.getDate(), bookingDto.getSeatLabels(), ownHeld)) {
+                results[i] = new BookingResultDTO(Response.Status.FORBIDDEN.getStatusCode(), null);
+                continue;
             }
+            SeatHoldRegistry.instance().consume(user.getId(), bookingDto.getDate(), bookingDto.getSeatLabels());
+            pending.put(i, null);
         }
 
-        float percentageOfSeatsBooked = ((float)numberOfBookedSeats / (float)seats.size()) * 100f;
+        LOGGER.info("Booking seats for " + pending.size() + " requests...");
+
+        for (int i : pending.keySet()) {
+            BookingRequestDTO bookingDto = bookingDtos.get(i);
+            pending.put(i, BookingWriter.instance()
+                    .submit(user.getId(), bookingDto.getConcertId(), bookingDto.getDate(), bookingDto.getSeatLabels()));
+        }
 
-        ConcertInfoNotificationDTO notification = new ConcertInfoNotificationDTO(seats.size() - numberOfBookedSeats);
-        for (ConcertSubscription subscription : concertSubscriptions) {
-            if (
-                    subscription.info.getConcertId() == concertId &&
-                    subscription.info.getDate().equals(date) &&
-                    percentageOfSeatsBooked >= subscription.info.getPercentageBooked()
-            ) {
-                subscription.sub.resume(Response.ok(notification).build());
+        for (Map.Entry<Integer, CompletableFuture<Long>> entry : pending.entrySet()) {
+            try {
+                long bookingId = entry.getValue().join();
+                results[entry.getKey()] = new BookingResultDTO(Response.Status.CREATED.getStatusCode(),
+                        "/concert-service/bookings/" + bookingId);
+            } catch (CompletionException e) {
+                LOGGER.error("Booking was not persisted: " + e.getCause());
+                results[entry.getKey()] = new BookingResultDTO(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), null);
             }
         }
     }
+
+    // Makes a batch of bookings using the sequencer engine. Every request is queued for its date's BookingSequencer
+    // before any is waited for, so requests for different dates are decided in parallel.
+    private void createBookingsInSequence(UserPrincipal user, List<BookingRequestDTO> bookingDtos,
+                                          List<Integer> validRequests, BookingResultDTO[] results) {
+        LOGGER.info("Booking seats for " + validRequests.size() + " requests...");
+
+        Map<Integer, CompletableFuture<Long>> pending = new HashMap<>();
+        for (int i : validRequests) {
+            BookingRequestDTO bookingDto = bookingDtos.get(i);
+            long[] ownHeld = SeatHoldRegistry.instance().heldBy(user.getId(), bookingDto.getDate());
+            pending.put(i, BookingSequencer.instance().submit(user.getId(), bookingDto.getConcertId(),
+                    bookingDto.getDate(), bookingDto.getSeatLabels(), ownHeld));
+        }
+
+        for (Map.Entry<Integer, CompletableFuture<Long>> entry : pending.entrySet()) {
+            try {
+                Long bookingId = entry.getValue().join();
+                if (bookingId == null) {
+                    results[entry.getKey()] = new BookingResultDTO(Response.Status.FORBIDDEN.getStatusCode(), null);
+                } else {
+                    results[entry.getKey()] = new BookingResultDTO(Response.Status.CREATED.getStatusCode(),
+                            "/concert-service/bookings/" + bookingId);
+                }
+            } catch (CompletionException e) {
+                LOGGER.error("Booking was not made: " + e.getCause());
+                results[entry.getKey()] = new BookingResultDTO(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), null);
+            }
+        }
+    }
+
+    // Serves a resource from the current catalog snapshot, or a 304 response if the client's copy is still current.
+    // The bytes were encoded when the snapshot was built, so they are written out as they are.
+    private Response catalogResponse(Request request, String acceptEncoding,
+                                     Function<CatalogCache.Snapshot, CatalogCache.EncodedJson> resource) {
+        CatalogCache.Snapshot catalog = CatalogCache.instance().current();
+        CatalogCache.EncodedJson json = resource.apply(catalog);
+        if (json == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+
+        boolean gzip = ContentEncoding.isAccepted(acceptEncoding, ContentEncoding.GZIP);
+        EntityTag entityTag = catalog.getEntityTag(gzip);
+        // a client that only accepts deflate gets the unencoded bytes compressed by the CompressionInterceptor
+        String coding = gzip ? null : ContentEncoding.responseCoding(acceptEncoding, json.getBytes(false).length);
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(
+                coding == null ? entityTag : ContentEncoding.encodedEntityTag(entityTag, coding));
+        if (notModified != null) {
+            return notModified
+                    .cacheControl(catalogCacheControl())
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                    .build();
+        }
+
+        byte[] bytes = json.getBytes(gzip);
+        Response.ResponseBuilder builder = Response
+                .ok((StreamingOutput) output -> output.write(bytes))
+                .tag(entityTag)
+                .cacheControl(catalogCacheControl())
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                .header(HttpHeaders.CONTENT_LENGTH, bytes.length);
+        if (gzip) {
+            builder.encoding(ContentEncoding.GZIP);
+        }
+        return builder.build();
+    }
+
+    // Serves a page of concerts or performers from the current catalog snapshot, linking to the next page if there is one.
+    private Response catalogPageResponse(Request request, String acceptEncoding, UriInfo uriInfo, Integer limit,
+                                         Function<CatalogCache.Snapshot, CatalogCache.Page> page) {
+        if (limit != null && limit < 1) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        // pages are assembled per request, so they're left to the CompressionInterceptor to compress, which changes
+        // their tag if they're large enough
+        CatalogCache.Snapshot catalog = CatalogCache.instance().current();
+        CatalogCache.Page catalogPage = page.apply(catalog);
+        byte[] bytes = catalogPage.getBytes();
+        EntityTag entityTag = catalog.getEntityTag(false);
+        String coding = ContentEncoding.responseCoding(acceptEncoding, bytes.length);
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(
+                coding == null ? entityTag : ContentEncoding.encodedEntityTag(entityTag, coding));
+        if (notModified != null) {
+            return notModified
+                    .cacheControl(catalogCacheControl())
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                    .build();
+        }
+
+        Response.ResponseBuilder builder = Response
+                .ok((StreamingOutput) output -> output.write(bytes))
+                .tag(entityTag)
+                .cacheControl(catalogCacheControl());
+        if (catalogPage.getNextAfter() != null) {
+            builder.links(nextPageLink(uriInfo, pageSize(limit), catalogPage.getNextAfter()));
+        }
+        return builder.build();
+    }
+
+    // The number of items on a page, given the limit the client asked for (if any)
+    private static int pageSize(Integer limit) {
+        return limit == null ? ServiceConfig.PAGE_MAX_LIMIT : Math.min(limit, ServiceConfig.PAGE_MAX_LIMIT);
+    }
+
+    private static Link nextPageLink(UriInfo uriInfo, int pageSize, long lastId) {
+        return Link.fromUriBuilder(uriInfo.getRequestUriBuilder()
+                .replaceQueryParam("limit", pageSize)
+                .replaceQueryParam("after", lastId))
+                .rel("next")
+                .build();
+    }
+
+    private static CacheControl catalogCacheControl() {
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setMaxAge(ServiceConfig.CATALOG_MAX_AGE_SECONDS);
+        return cacheControl;
+    }
+
+    // When the waiting room is turned on, only sessions it has admitted for the given date may continue. Returns the
+    // response to send if the session may not continue, or null if it may.
+    private Response checkAdmission(String admissionToken, LocalDateTime date) {
+        if (!WaitingRoom.isEnabled()) {
+            return null;
+        }
+        return checkAdmission(WaitingRoom.instance().get(admissionToken), date);
+    }
+
+    private Response checkAdmission(WaitingRoom.Admission admission, LocalDateTime date) {
+        if (admission == null || !admission.getDate().equals(date)) {
+            return Response.status(Response.Status.TOO_MANY_REQUESTS).build();
+        }
+        if (!admission.isAdmitted()) {
+            return Response.status(Response.Status.TOO_MANY_REQUESTS).entity(AdmissionMapper.toDTO(admission)).build();
+        }
+        return null;
+    }
+
+    // Notifies subscribers to the given concert date whose threshold has been reached. The subscribers are checked and
+    // resumed by the notification dispatcher, so the caller doesn't wait for them.
+    private void issueNotifications(Long concertId, LocalDateTime date) {
+        LOGGER.info("Issuing notifications...");
+        notifications.dateChanged(concertId, date);
+    }
 }
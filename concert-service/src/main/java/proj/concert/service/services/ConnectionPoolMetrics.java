@@ -0,0 +1,58 @@
+package proj.concert.service.services;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+import proj.concert.service.util.Histogram;
+import proj.concert.service.util.ServiceMetrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reports the database connection pool to {@link ServiceMetrics}: how many connections are active (in use) and idle,
+ * how many requests are waiting for one, how long they waited (as a histogram in microseconds), how long connections
+ * were used for (as a histogram in milliseconds), and how many waits timed out.
+ * <p>
+ * HikariCP creates one of these for each pool, naming it by class in the pool's configuration (see
+ * {@link PersistenceManager}). The gauges report the latest pool, so they carry on working after a reset.
+ */
+public class ConnectionPoolMetrics implements MetricsTrackerFactory {
+
+    private static final Histogram acquireMicros =
+            new Histogram("db.pool.acquireMicros", 10, 100, 1000, 10000, 100000, 1000000);
+    private static final Histogram usageMillis =
+            new Histogram("db.pool.usageMillis", 1, 10, 100, 1000, 10000);
+    private static final AtomicLong numTimeouts = new AtomicLong();
+
+    private static volatile PoolStats poolStats;
+
+    static {
+        ServiceMetrics.instance().gauge("db.pool.active", () -> poolStats == null ? 0 : poolStats.getActiveConnections());
+        ServiceMetrics.instance().gauge("db.pool.idle", () -> poolStats == null ? 0 : poolStats.getIdleConnections());
+        ServiceMetrics.instance().gauge("db.pool.pending", () -> poolStats == null ? 0 : poolStats.getPendingThreads());
+        ServiceMetrics.instance().gauge("db.pool.total", () -> poolStats == null ? 0 : poolStats.getTotalConnections());
+        ServiceMetrics.instance().gauge("db.pool.timeouts", numTimeouts::get);
+    }
+
+    @Override
+    public IMetricsTracker create(String poolName, PoolStats poolStats) {
+        ConnectionPoolMetrics.poolStats = poolStats;
+        return new IMetricsTracker() {
+            @Override
+            public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+                acquireMicros.record(TimeUnit.NANOSECONDS.toMicros(elapsedAcquiredNanos));
+            }
+
+            @Override
+            public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+                usageMillis.record(elapsedBorrowedMillis);
+            }
+
+            @Override
+            public void recordConnectionTimeout() {
+                numTimeouts.incrementAndGet();
+            }
+        };
+    }
+}
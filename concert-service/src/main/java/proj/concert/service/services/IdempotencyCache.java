@@ -0,0 +1,120 @@
+package proj.concert.service.services;
+
+import proj.concert.service.util.ExpiringCache;
+import proj.concert.service.util.ServiceConfig;
+
+import javax.ws.rs.core.Response;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Remembers the outcome of requests made with an Idempotency-Key header, so that a client retrying a request (e.g.
+ * after a timeout) gets the original outcome back instead of repeating the work.
+ * <p>
+ * Outcomes are keyed by the caller's auth cookie and their idempotency key, so they can be replayed without looking
+ * the user up in the database. If a retry arrives while the original request is still running, it waits for the
+ * original's outcome. Only outcomes that a retry should see again are kept: 401s, 429s and server errors are
+ * forgotten, so the request can be tried again.
+ */
+public class IdempotencyCache {
+
+    public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    public static final String REPLAYED_HEADER = "Idempotent-Replayed";
+
+    private static final int UNPROCESSABLE_ENTITY = 422;
+
+    private final ExpiringCache<String, Attempt> attempts =
+            new ExpiringCache<>(ServiceConfig.IDEMPOTENCY_MAX_KEYS, ServiceConfig.IDEMPOTENCY_TTL_SECONDS * 1000);
+
+    /**
+     * Runs the given request, unless a request with the same key has already been made, in which case its outcome is
+     * returned instead.
+     *
+     * @param sessionKey     identifies the caller, e.g. the value of their auth cookie
+     * @param idempotencyKey the value of the request's Idempotency-Key header
+     * @param fingerprint    a hash of the request body; reusing a key for a different request results in a 422
+     * @param request        makes the request. Its response must not have an entity, as only the status and location
+     *                       are remembered.
+     * @return the response, which completes once the request (or the original request with the same key) has
+     */
+    public CompletionStage<Response> execute(String sessionKey, String idempotencyKey, int fingerprint,
+                                             Supplier<CompletionStage<Response>> request) {
+        String key = sessionKey + " " + idempotencyKey;
+        Attempt attempt = new Attempt(fingerprint);
+        Attempt existing = attempts.computeIfAbsent(key, k -> attempt);
+
+        if (existing != attempt) {
+            if (existing.fingerprint != fingerprint) {
+                return CompletableFuture.completedFuture(Response.status(UNPROCESSABLE_ENTITY).build());
+            }
+            // wait for the original request's outcome, without tying up this request's thread
+            return existing.outcome.copy()
+                    .orTimeout(ServiceConfig.WRITE_BEHIND_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                    .handle((outcome, e) -> {
+                        if (e == null && outcome != null) {
+                            return CompletableFuture.completedFuture(Response.status(outcome.status)
+                                    .location(outcome.location)
+                                    .header(REPLAYED_HEADER, true)
+                                    .build());
+                        }
+                        Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                        if (cause instanceof TimeoutException) {
+                            return CompletableFuture.completedFuture(Response.status(Response.Status.CONFLICT).build());
+                        }
+                        // the original request failed, or its outcome wasn't worth remembering, so make the request again
+                        return request.get();
+                    })
+                    .thenCompose(Function.identity());
+        }
+
+        CompletionStage<Response> response;
+        try {
+            response = request.get();
+        } catch (RuntimeException e) {
+            attempts.remove(key, attempt);
+            attempt.outcome.completeExceptionally(e);
+            throw e;
+        }
+
+        return response.whenComplete((r, e) -> {
+            if (e != null) {
+                attempts.remove(key, attempt);
+                attempt.outcome.completeExceptionally(e);
+                return;
+            }
+            int status = r.getStatus();
+            if (status == Response.Status.UNAUTHORIZED.getStatusCode()
+                    || status == Response.Status.TOO_MANY_REQUESTS.getStatusCode() || status >= 500) {
+                attempts.remove(key, attempt);
+                attempt.outcome.complete(null);
+            } else {
+                attempt.outcome.complete(new Outcome(status, r.getLocation()));
+            }
+        });
+    }
+
+    private static class Attempt {
+        final int fingerprint;
+        final CompletableFuture<Outcome> outcome = new CompletableFuture<>();
+
+        Attempt(int fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private static class Outcome {
+        final int status;
+        final URI location;
+
+        Outcome(int status, URI location) {
+            this.status = status;
+            this.location = location;
+        }
+    }
+}
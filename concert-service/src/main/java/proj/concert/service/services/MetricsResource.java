@@ -0,0 +1,26 @@
+package proj.concert.service.services;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import proj.concert.service.util.ServiceMetrics;
+
+/**
+ * This service reports the gauges registered with {@link ServiceMetrics}, for monitoring.
+ */
+@Path("/concert-service-metrics")
+@Produces(MediaType.APPLICATION_JSON)
+public class MetricsResource {
+
+    /**
+     * Retrieves the current value of every gauge, as a JSON object keyed by gauge name.
+     */
+    @GET
+    public Response getMetrics() {
+        return Response.ok(ServiceMetrics.instance().snapshot()).build();
+    }
+
+}
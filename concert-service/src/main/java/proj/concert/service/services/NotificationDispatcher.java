@@ -0,0 +1,112 @@
+package proj.concert.service.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proj.concert.common.dto.ConcertInfoNotificationDTO;
+import proj.concert.service.util.SeatAvailabilityIndex;
+import proj.concert.service.util.ServiceConfig;
+import proj.concert.service.util.ServiceMetrics;
+import proj.concert.service.util.TheatreLayout;
+
+import javax.ws.rs.core.Response;
+import java.time.LocalDateTime;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Notifies concert info subscribers on a small pool of dispatcher threads, so that booking requests don't wait for
+ * subscribers' responses to be written.
+ * <p>
+ * Bookings report that a concert date has changed with {@link #dateChanged(long, LocalDateTime)}. Changes are
+ * coalesced: while a date is waiting to be dispatched, further changes to it are dropped, as the dispatch will read
+ * the date's latest occupancy anyway. A date is taken off the pending set before its occupancy is read, so a change
+ * made during a dispatch is always followed by another one.
+ * <p>
+ * The dispatcher reports its queue depth and dispatch lag (the time from a date first changing to its subscribers
+ * being notified) to {@link ServiceMetrics}.
+ */
+class NotificationDispatcher {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(NotificationDispatcher.class);
+
+    private final SubscriptionRegistry subscriptions;
+    private final ThreadPoolExecutor executor;
+
+    // the concert dates waiting to be dispatched, with the time each first changed
+    private final ConcurrentMap<ConcertDateKey, Long> pending = new ConcurrentHashMap<>();
+
+    private final AtomicLong lastLagMillis = new AtomicLong();
+    private final AtomicLong maxLagMillis = new AtomicLong();
+    private final AtomicLong numNotified = new AtomicLong();
+
+    NotificationDispatcher(SubscriptionRegistry subscriptions) {
+        this(subscriptions, ServiceConfig.NOTIFICATION_THREADS, ServiceConfig.NOTIFICATION_QUEUE_SIZE);
+    }
+
+    /**
+     * @param numThreads the number of dispatcher threads
+     * @param queueSize  the number of changes that may wait to be dispatched
+     */
+    NotificationDispatcher(SubscriptionRegistry subscriptions, int numThreads, int queueSize) {
+        this.subscriptions = subscriptions;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        // when the queue is full, the caller dispatches the change itself rather than dropping it
+        executor = new ThreadPoolExecutor(numThreads, numThreads,
+                0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(queueSize),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "notification-dispatcher-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+
+        ServiceMetrics.instance().gauge("notifications.queueDepth", () -> executor.getQueue().size());
+        ServiceMetrics.instance().gauge("notifications.pendingDates", pending::size);
+        ServiceMetrics.instance().gauge("notifications.lastLagMillis", lastLagMillis::get);
+        ServiceMetrics.instance().gauge("notifications.maxLagMillis", maxLagMillis::get);
+        ServiceMetrics.instance().gauge("notifications.notified", numNotified::get);
+    }
+
+    /**
+     * Schedules the subscribers to the given concert date to be checked against its current occupancy.
+     */
+    void dateChanged(long concertId, LocalDateTime date) {
+        ConcertDateKey key = new ConcertDateKey(concertId, date);
+        if (pending.putIfAbsent(key, System.currentTimeMillis()) == null) {
+            executor.execute(() -> dispatch(key));
+        }
+    }
+
+    private void dispatch(ConcertDateKey key) {
+        Long changedAt = pending.remove(key);
+        if (changedAt != null) {
+            long lag = System.currentTimeMillis() - changedAt;
+            lastLagMillis.set(lag);
+            maxLagMillis.accumulateAndGet(lag, Math::max);
+        }
+
+        int numberOfBookedSeats = SeatAvailabilityIndex.instance().numBooked(key.date);
+        if (numberOfBookedSeats < 0) {
+            return;
+        }
+
+        float percentageOfSeatsBooked = ((float)numberOfBookedSeats / (float)TheatreLayout.NUM_SEATS_IN_THEATRE) * 100f;
+
+        ConcertInfoNotificationDTO notification = new ConcertInfoNotificationDTO(TheatreLayout.NUM_SEATS_IN_THEATRE - numberOfBookedSeats);
+        for (ConcertSubscription subscription : subscriptions.removeReached(key.concertId, key.date, percentageOfSeatsBooked)) {
+            try {
+                subscription.sub.resume(Response.ok(notification).build());
+                numNotified.incrementAndGet();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Could not notify subscriber to concert " + key.concertId + " on " + key.date, e);
+            }
+        }
+    }
+}
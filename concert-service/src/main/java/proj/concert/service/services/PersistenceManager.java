@@ -1,8 +1,18 @@
 package proj.concert.service.services;
 
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.CacheRegionStatistics;
+import org.hibernate.stat.Statistics;
+import proj.concert.service.util.ServiceConfig;
+import proj.concert.service.util.ServiceMetrics;
+
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
 
 /**
  * Singleton class that manages an EntityManagerFactory. When a
@@ -14,15 +24,81 @@ import javax.persistence.Persistence;
  * persistence context, it should call the PersistentManager's
  * createEntityManager() method to acquire one.
  * <p>
- * This class is complete - you do not need to modify it.
+ * The PersistenceManager also reports the hits, misses and puts of each
+ * second-level cache region (see ehcache.xml), and the number of SQL
+ * statements and entity and collection loads, to {@link ServiceMetrics}.
+ * <p>
+ * Connections come from a HikariCP pool, sized and tuned by {@link ServiceConfig}, unless
+ * {@link ServiceConfig#DB_POOLED} is turned off. The pool reports itself through {@link ConnectionPoolMetrics}.
  */
 public class PersistenceManager {
+    // entity and collection regions are named after the entity class or collection role
+    private static final String DOMAIN_PACKAGE = "proj.concert.service.domain.";
+    private static final String[] CACHE_REGIONS = {"Concert", "Concert.dates", "Concert.performers", "Performer"};
+    private static final String QUERY_CACHE_REGION = "default-query-results-region";
+    private static final String FETCH_GRAPH_HINT = "javax.persistence.fetchgraph";
+    private static final String HIKARI_PREFIX = "hibernate.hikari.";
+
     private static PersistenceManager instance = null;
 
     private EntityManagerFactory entityManagerFactory;
 
     protected PersistenceManager() {
-        entityManagerFactory = Persistence.createEntityManagerFactory("proj.concert");
+        entityManagerFactory = Persistence.createEntityManagerFactory("proj.concert", connectionSettings());
+
+        for (String region : CACHE_REGIONS) {
+            cacheGauges("cache." + region, statistics -> statistics.getDomainDataRegionStatistics(DOMAIN_PACKAGE + region));
+        }
+        cacheGauges("cache.queries", statistics -> statistics.getQueryRegionStatistics(QUERY_CACHE_REGION));
+        ServiceMetrics.instance().gauge("hibernate.statements", () -> statistics().getPrepareStatementCount());
+        ServiceMetrics.instance().gauge("hibernate.entityLoads", () -> statistics().getEntityLoadCount());
+        ServiceMetrics.instance().gauge("hibernate.collectionLoads", () -> statistics().getCollectionLoadCount());
+    }
+
+    /**
+     * @return query or find hints that load an entity with the named entity graph as its fetch plan: the attributes
+     * in the graph are fetched along with the entity, and the entity's other lazy attributes aren't
+     */
+    public static Map<String, Object> fetchGraph(EntityManager em, String graphName) {
+        return Collections.singletonMap(FETCH_GRAPH_HINT, em.getEntityGraph(graphName));
+    }
+
+    // overrides persistence.xml's connection settings, which use Hibernate's built-in pool
+    private static Map<String, Object> connectionSettings() {
+        Map<String, Object> settings = new HashMap<>();
+        if (!ServiceConfig.DB_POOLED) {
+            return settings;
+        }
+        settings.put("hibernate.connection.provider_class", "org.hibernate.hikaricp.internal.HikariCPConnectionProvider");
+        settings.put(HIKARI_PREFIX + "poolName", "proj.concert");
+        settings.put(HIKARI_PREFIX + "minimumIdle", String.valueOf(ServiceConfig.DB_POOL_MIN_IDLE));
+        settings.put(HIKARI_PREFIX + "maximumPoolSize", String.valueOf(ServiceConfig.DB_POOL_MAX_SIZE));
+        settings.put(HIKARI_PREFIX + "connectionTimeout", String.valueOf(ServiceConfig.DB_POOL_TIMEOUT_MILLIS));
+        settings.put(HIKARI_PREFIX + "leakDetectionThreshold", String.valueOf(ServiceConfig.DB_POOL_LEAK_DETECTION_MILLIS));
+        settings.put(HIKARI_PREFIX + "metricsTrackerFactory", ConnectionPoolMetrics.class.getName());
+        // HikariCP leaves statement caching to the driver; H2 caches parsed statements per connection
+        settings.put(HIKARI_PREFIX + "dataSource.QUERY_CACHE_SIZE", String.valueOf(ServiceConfig.DB_STATEMENT_CACHE_SIZE));
+        return settings;
+    }
+
+    // the gauges read the current factory's statistics, so they carry on working after a reset
+    private void cacheGauges(String name, Function<Statistics, CacheRegionStatistics> region) {
+        ServiceMetrics.instance().gauge(name + ".hits", () -> regionStatistic(region, CacheRegionStatistics::getHitCount));
+        ServiceMetrics.instance().gauge(name + ".misses", () -> regionStatistic(region, CacheRegionStatistics::getMissCount));
+        ServiceMetrics.instance().gauge(name + ".puts", () -> regionStatistic(region, CacheRegionStatistics::getPutCount));
+    }
+
+    private long regionStatistic(Function<Statistics, CacheRegionStatistics> region,
+                                 Function<CacheRegionStatistics, Long> statistic) {
+        CacheRegionStatistics regionStatistics = region.apply(statistics());
+        return regionStatistics == null ? 0 : statistic.apply(regionStatistics);
+    }
+
+    /**
+     * @return the Hibernate statistics of the current EntityManagerFactory
+     */
+    public Statistics statistics() {
+        return entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
     }
 
     public EntityManager createEntityManager() {
@@ -39,7 +115,7 @@ public class PersistenceManager {
     // FOR TESTING ONLY! Will wipe the database.
     public void reset() {
         entityManagerFactory.close();
-        entityManagerFactory = Persistence.createEntityManagerFactory("proj.concert");
+        entityManagerFactory = Persistence.createEntityManagerFactory("proj.concert", connectionSettings());
     }
 
 }
@@ -0,0 +1,83 @@
+package proj.concert.service.services;
+
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import proj.concert.service.util.ServiceMetrics;
+
+import javax.persistence.EntityManager;
+import javax.servlet.ServletRequestEvent;
+import javax.servlet.ServletRequestListener;
+import javax.servlet.http.HttpServletRequest;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives each request a single EntityManager, created the first time the request asks for one and closed (rolling back
+ * anything left uncommitted) once the request has ended, however its handler returned. Registered in web.xml.
+ * <p>
+ * GET and HEAD requests only read, so their EntityManager is read-only: entities are loaded without the snapshots
+ * dirty checking needs, it is never flushed, and its reads run in a single transaction on a read-only JDBC connection.
+ * <p>
+ * Work that carries on after its request's thread returns (bookings made by the sequencer, retried idempotent
+ * bookings and subscriptions) may outlive the request, so it still creates its own EntityManager.
+ */
+public class RequestEntityManager implements ServletRequestListener {
+
+    private static final String ATTRIBUTE = RequestEntityManager.class.getName();
+
+    private static final AtomicInteger numOpen = new AtomicInteger();
+
+    static {
+        ServiceMetrics.instance().gauge("entityManagers.requestScoped", numOpen::get);
+    }
+
+    /**
+     * @return the given request's EntityManager, which must not be closed
+     */
+    public static EntityManager get(HttpServletRequest request) {
+        EntityManager em = (EntityManager) request.getAttribute(ATTRIBUTE);
+        if (em != null) {
+            return em;
+        }
+
+        em = PersistenceManager.instance().createEntityManager();
+        numOpen.incrementAndGet();
+        request.setAttribute(ATTRIBUTE, em);
+        if (isReadOnly(request)) {
+            Session session = em.unwrap(Session.class);
+            session.setDefaultReadOnly(true);
+            session.setHibernateFlushMode(FlushMode.MANUAL);
+            em.getTransaction().begin();
+            session.doWork(connection -> connection.setReadOnly(true));
+        }
+        return em;
+    }
+
+    @Override
+    public void requestInitialized(ServletRequestEvent event) {
+    }
+
+    @Override
+    public void requestDestroyed(ServletRequestEvent event) {
+        EntityManager em = (EntityManager) event.getServletRequest().getAttribute(ATTRIBUTE);
+        if (em == null) {
+            return;
+        }
+
+        try {
+            if (em.getTransaction().isActive()) {
+                if (isReadOnly((HttpServletRequest) event.getServletRequest())) {
+                    // the connection goes back to the pool, to be used for writes next time
+                    em.unwrap(Session.class).doWork(connection -> connection.setReadOnly(false));
+                }
+                em.getTransaction().rollback();
+            }
+        } finally {
+            em.close();
+            numOpen.decrementAndGet();
+        }
+    }
+
+    private static boolean isReadOnly(HttpServletRequest request) {
+        return "GET".equals(request.getMethod()) || "HEAD".equals(request.getMethod());
+    }
+}
@@ -0,0 +1,218 @@
+package proj.concert.service.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proj.concert.service.util.HashedTimingWheel;
+import proj.concert.service.util.SeatAvailabilityIndex;
+import proj.concert.service.util.ServiceConfig;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Singleton registry of the seat holds that are currently live.
+ * <p>
+ * A hold reserves seats in the {@link SeatAvailabilityIndex} for {@link ServiceConfig#HOLD_TTL_SECONDS}, during which
+ * only the holder may book them. Holds live only in memory: expiring one just clears its bits in the index, so no
+ * Seat rows are locked or written. Expiry is driven by a {@link HashedTimingWheel}, so the cost per tick doesn't grow
+ * with the number of live holds.
+ */
+public class SeatHoldRegistry {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(SeatHoldRegistry.class);
+
+    private static SeatHoldRegistry instance = null;
+
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final ConcurrentMap<Long, SeatHold> holds = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, Set<SeatHold>> holdsByUser = new ConcurrentHashMap<>();
+    private final HashedTimingWheel<SeatHold> expiryWheel = new HashedTimingWheel<>(
+            "seat-hold-expiry", ServiceConfig.HOLD_TICK_MILLIS, ServiceConfig.HOLD_WHEEL_SIZE, this::expire);
+
+    protected SeatHoldRegistry() {
+    }
+
+    public static synchronized SeatHoldRegistry instance() {
+        if (instance == null) {
+            instance = new SeatHoldRegistry();
+        }
+        return instance;
+    }
+
+    /**
+     * Attempts to hold the given seats for the given user.
+     *
+     * @return the new hold, or null if any of the seats is already booked or held
+     */
+    public SeatHold hold(long userId, long concertId, LocalDateTime date, List<String> seatLabels) {
+        long[] mask = SeatAvailabilityIndex.toMask(seatLabels);
+        if (!SeatAvailabilityIndex.instance().tryHold(date, mask)) {
+            return null;
+        }
+
+        long ttlMillis = ServiceConfig.HOLD_TTL_SECONDS * 1000;
+        SeatHold hold = new SeatHold(nextId.getAndIncrement(), userId, concertId, date, seatLabels, mask,
+                LocalDateTime.now().plusSeconds(ServiceConfig.HOLD_TTL_SECONDS));
+        holds.put(hold.id, hold);
+        holdsByUser.computeIfAbsent(userId, id -> ConcurrentHashMap.newKeySet()).add(hold);
+        hold.timeout = expiryWheel.schedule(hold, ttlMillis);
+        return hold;
+    }
+
+    public SeatHold get(long holdId) {
+        return holds.get(holdId);
+    }
+
+    /**
+     * Releases the hold with the given id, making its seats available again.
+     *
+     * @return true if the hold was live and has been released
+     */
+    public boolean release(long holdId) {
+        SeatHold hold = remove(holdId);
+        if (hold == null) {
+            return false;
+        }
+        hold.cancelTimeout();
+        SeatAvailabilityIndex.instance().releaseHold(hold.date, hold.mask);
+        return true;
+    }
+
+    /**
+     * Returns all seats the given user holds on the given date, as a bitset of the kind used by
+     * {@link SeatAvailabilityIndex}.
+     */
+    public long[] heldBy(long userId, LocalDateTime date) {
+        long[] mask = SeatAvailabilityIndex.emptyMask();
+        Set<SeatHold> userHolds = holdsByUser.get(userId);
+        if (userHolds != null) {
+            for (SeatHold hold : userHolds) {
+                if (hold.date.equals(date)) {
+                    for (int i = 0; i < mask.length; i++) {
+                        mask[i] |= hold.mask[i];
+                    }
+                }
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Called once the given user has booked some seats. Any of the user's holds on that date that covered those seats
+     * have served their purpose, so they are removed, and any of their seats that weren't booked are released.
+     */
+    public void consume(long userId, LocalDateTime date, Collection<String> bookedSeatLabels) {
+        Set<SeatHold> userHolds = holdsByUser.get(userId);
+        if (userHolds == null) {
+            return;
+        }
+        long[] booked = SeatAvailabilityIndex.toMask(bookedSeatLabels);
+        for (SeatHold hold : userHolds) {
+            if (hold.date.equals(date) && overlaps(hold.mask, booked)) {
+                release(hold.id);
+            }
+        }
+    }
+
+    /**
+     * Discards all holds, without touching the index. Used when the index itself is being reset.
+     */
+    public void clear() {
+        for (SeatHold hold : holds.values()) {
+            hold.cancelTimeout();
+        }
+        holds.clear();
+        holdsByUser.clear();
+    }
+
+    public int size() {
+        return holds.size();
+    }
+
+    private void expire(SeatHold hold) {
+        if (remove(hold.id) != null) {
+            LOGGER.debug("Hold " + hold.id + " expired");
+            SeatAvailabilityIndex.instance().releaseHold(hold.date, hold.mask);
+        }
+    }
+
+    private SeatHold remove(long holdId) {
+        SeatHold hold = holds.remove(holdId);
+        if (hold != null) {
+            holdsByUser.computeIfPresent(hold.userId, (userId, userHolds) -> {
+                userHolds.remove(hold);
+                return userHolds.isEmpty() ? null : userHolds;
+            });
+        }
+        return hold;
+    }
+
+    private static boolean overlaps(long[] a, long[] b) {
+        for (int i = 0; i < a.length; i++) {
+            if ((a[i] & b[i]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A live hold on some seats.
+     */
+    public static class SeatHold {
+        private final long id;
+        private final long userId;
+        private final long concertId;
+        private final LocalDateTime date;
+        private final List<String> seatLabels;
+        private final long[] mask;
+        private final LocalDateTime expiresAt;
+        private volatile HashedTimingWheel.Timeout<SeatHold> timeout;
+
+        private SeatHold(long id, long userId, long concertId, LocalDateTime date, List<String> seatLabels, long[] mask, LocalDateTime expiresAt) {
+            this.id = id;
+            this.userId = userId;
+            this.concertId = concertId;
+            this.date = date;
+            this.seatLabels = seatLabels;
+            this.mask = mask;
+            this.expiresAt = expiresAt;
+        }
+
+        private void cancelTimeout() {
+            HashedTimingWheel.Timeout<SeatHold> timeout = this.timeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public long getUserId() {
+            return userId;
+        }
+
+        public long getConcertId() {
+            return concertId;
+        }
+
+        public LocalDateTime getDate() {
+            return date;
+        }
+
+        public List<String> getSeatLabels() {
+            return seatLabels;
+        }
+
+        public LocalDateTime getExpiresAt() {
+            return expiresAt;
+        }
+    }
+}
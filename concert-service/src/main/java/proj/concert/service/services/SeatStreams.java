@@ -0,0 +1,109 @@
+package proj.concert.service.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proj.concert.service.util.SeatAvailabilityIndex;
+import proj.concert.service.util.ServiceMetrics;
+import proj.concert.service.util.TheatreLayout;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.sse.OutboundSseEvent;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseBroadcaster;
+import javax.ws.rs.sse.SseEventSink;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams live changes to the seat maps of concert dates as server-sent events.
+ * <p>
+ * Each date has one {@link SseBroadcaster}, shared by everyone viewing that date, which is fed by the
+ * {@link SeatAvailabilityIndex} as seats are booked, held and released. A new viewer is first sent a "snapshot" event
+ * listing every unavailable seat, then "booked" and "released" events listing the seats that change. Every event's
+ * data is a JSON array of seat labels, and its id is the version of the seat map it brings the viewer up to (see
+ * {@link SeatAvailabilityIndex#version(LocalDateTime)}).
+ * <p>
+ * Snapshots and changes are all sent from one thread, in the order the changes were made, so a viewer never misses a
+ * change made after its snapshot was taken. A change made just before may be sent again, which is harmless.
+ */
+class SeatStreams {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(SeatStreams.class);
+
+    static final String SNAPSHOT_EVENT = "snapshot";
+    static final String BOOKED_EVENT = "booked";
+    static final String RELEASED_EVENT = "released";
+
+    private final ConcurrentMap<LocalDateTime, SseBroadcaster> broadcasters = new ConcurrentHashMap<>();
+    private final ExecutorService sender = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "seat-stream-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger numViewers = new AtomicInteger();
+
+    // the Sse context is the same for every request, so it is kept from the first viewer
+    private volatile Sse sse;
+
+    SeatStreams() {
+        SeatAvailabilityIndex.instance().addListener(this::seatsChanged);
+        ServiceMetrics.instance().gauge("seatStreams.viewers", numViewers::get);
+    }
+
+    /**
+     * Sends the given date's current seat map to a new viewer, and then keeps it up to date.
+     */
+    void open(LocalDateTime date, SseEventSink sink, Sse sse) {
+        this.sse = sse;
+        sender.execute(() -> {
+            SseBroadcaster broadcaster = broadcasters.computeIfAbsent(date, d -> {
+                SseBroadcaster newBroadcaster = sse.newBroadcaster();
+                newBroadcaster.onClose(closed -> numViewers.decrementAndGet());
+                newBroadcaster.onError((failed, e) -> LOGGER.debug("Could not send seat changes to a viewer: " + e));
+                return newBroadcaster;
+            });
+
+            SeatAvailabilityIndex.SeatChanges snapshot = SeatAvailabilityIndex.instance().changesSince(date, -1);
+            if (snapshot != null) {
+                sink.send(event(SNAPSHOT_EVENT, snapshot.getVersion(), snapshot.getTaken()));
+            }
+            broadcaster.register(sink);
+            numViewers.incrementAndGet();
+        });
+    }
+
+    private void seatsChanged(LocalDateTime date, long version, int[] taken, int[] freed) {
+        SseBroadcaster broadcaster = broadcasters.get(date);
+        if (broadcaster == null) {
+            // nobody has viewed this date yet; a future viewer's snapshot will include the change
+            return;
+        }
+        sender.execute(() -> {
+            if (taken.length > 0) {
+                broadcaster.broadcast(event(BOOKED_EVENT, version, taken));
+            }
+            if (freed.length > 0) {
+                broadcaster.broadcast(event(RELEASED_EVENT, version, freed));
+            }
+        });
+    }
+
+    private OutboundSseEvent event(String name, long version, int[] seats) {
+        List<String> seatLabels = new ArrayList<>();
+        for (int seat : seats) {
+            seatLabels.add(TheatreLayout.seatLabel(seat));
+        }
+        return sse.newEventBuilder()
+                .name(name)
+                .id(Long.toString(version))
+                .mediaType(MediaType.APPLICATION_JSON_TYPE)
+                .data(List.class, seatLabels)
+                .build();
+    }
+}
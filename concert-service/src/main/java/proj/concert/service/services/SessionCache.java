@@ -0,0 +1,97 @@
+package proj.concert.service.services;
+
+import proj.concert.service.util.ExpiringCache;
+import proj.concert.service.util.ServiceConfig;
+import proj.concert.service.util.ServiceMetrics;
+
+import javax.persistence.EntityManager;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Singleton cache of the users that session ids (the values of auth cookies) belong to, so that authenticating a
+ * request doesn't usually need a database query.
+ * <p>
+ * Sessions are kept for {@link ServiceConfig#SESSION_TTL_SECONDS}, up to {@link ServiceConfig#SESSION_CACHE_SIZE} of
+ * them, least recently used first out. Session ids that don't belong to anyone are remembered too, for the shorter
+ * {@link ServiceConfig#SESSION_NEGATIVE_TTL_SECONDS}, so that a flood of made-up cookies can't reach the database.
+ * <p>
+ * Logging in replaces a user's session id, so {@link #loggedIn(UUID, UUID, UserPrincipal)} forgets the old one. A
+ * request made with the old id while the login is being committed may still cache it, but only until it expires.
+ */
+public class SessionCache {
+
+    // remembered for session ids that don't belong to any user
+    private static final UserPrincipal NO_USER = new UserPrincipal(-1, null);
+
+    private static final SessionCache instance = new SessionCache();
+
+    private final ExpiringCache<UUID, UserPrincipal> sessions =
+            new ExpiringCache<>(ServiceConfig.SESSION_CACHE_SIZE, ServiceConfig.SESSION_TTL_SECONDS * 1000);
+
+    private final AtomicLong numHits = new AtomicLong();
+    private final AtomicLong numMisses = new AtomicLong();
+
+    protected SessionCache() {
+        ServiceMetrics.instance().gauge("sessions.cached", sessions::size);
+        ServiceMetrics.instance().gauge("sessions.hits", numHits::get);
+        ServiceMetrics.instance().gauge("sessions.misses", numMisses::get);
+    }
+
+    public static SessionCache instance() {
+        return instance;
+    }
+
+    /**
+     * @param em used to look the session up if it isn't cached
+     * @return the user the given session belongs to, or null if it doesn't belong to anyone
+     */
+    UserPrincipal get(UUID sessionId, EntityManager em) {
+        UserPrincipal user = sessions.get(sessionId);
+        if (user != null) {
+            numHits.incrementAndGet();
+            return user == NO_USER ? null : user;
+        }
+        numMisses.incrementAndGet();
+
+        // only the columns the principal needs, so no User entity is loaded
+        List<Object[]> rows = em.createQuery("select u.id, u.username from User u where u.sessionId = :sessionId",
+                Object[].class)
+                .setParameter("sessionId", sessionId)
+                .getResultList();
+        if (rows.isEmpty()) {
+            sessions.put(sessionId, NO_USER, ServiceConfig.SESSION_NEGATIVE_TTL_SECONDS * 1000);
+            return null;
+        }
+        user = new UserPrincipal((Long) rows.get(0)[0], (String) rows.get(0)[1]);
+        sessions.put(sessionId, user);
+        return user;
+    }
+
+    /**
+     * Records that a user has logged in and been given a new session id, once the new id has been committed.
+     *
+     * @param oldSessionId the user's previous session id, which no longer authenticates them, or null if they had none
+     */
+    void loggedIn(UUID oldSessionId, UUID newSessionId, UserPrincipal user) {
+        if (oldSessionId != null) {
+            sessions.remove(oldSessionId);
+        }
+        sessions.put(newSessionId, user);
+    }
+
+    /**
+     * Records that the given session has ended, once its end has been committed.
+     */
+    void loggedOut(UUID sessionId) {
+        sessions.remove(sessionId);
+    }
+
+    /**
+     * Forgets every session, e.g. because the users have been reloaded.
+     */
+    public void clear() {
+        sessions.clear();
+    }
+}
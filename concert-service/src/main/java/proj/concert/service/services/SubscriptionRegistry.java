@@ -0,0 +1,149 @@
+package proj.concert.service.services;
+
+import proj.concert.service.util.ServiceConfig;
+import proj.concert.service.util.ServiceMetrics;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pending concert info subscriptions, indexed so that the subscriptions a booking should notify can be found without
+ * scanning the others.
+ * <p>
+ * Subscriptions are grouped by concert and date, and within each group are kept in a {@link TreeMap} ordered by their
+ * percentageBooked threshold. Finding and removing the k subscriptions whose threshold has been reached is therefore
+ * O(k + log n). A subscription is removed as soon as it is returned, so it is only ever notified once. Subscriptions
+ * that end another way (timing out, or the client disconnecting) are removed with {@link #remove(ConcertSubscription)}.
+ * <p>
+ * The registry is bounded by {@link ServiceConfig#SUBSCRIPTION_MAX} subscriptions overall and
+ * {@link ServiceConfig#SUBSCRIPTION_MAX_PER_USER} per user, and reports its size to {@link ServiceMetrics}.
+ */
+class SubscriptionRegistry {
+
+    // A rough figure for the memory held by one pending subscription: its registry entry, DTO and suspended request.
+    // It is only used to estimate the registry's footprint for monitoring.
+    private static final int ESTIMATED_BYTES_PER_SUBSCRIPTION = 2048;
+
+    enum AddResult {
+        ADDED,
+        /**
+         * The registry holds {@link ServiceConfig#SUBSCRIPTION_MAX} subscriptions already.
+         */
+        FULL,
+        /**
+         * The user holds {@link ServiceConfig#SUBSCRIPTION_MAX_PER_USER} subscriptions already.
+         */
+        FULL_FOR_USER
+    }
+
+    private final ConcurrentMap<ConcertDateKey, TreeMap<Integer, Set<ConcertSubscription>>> subscriptions = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    // the number of pending subscriptions of each user who has any
+    private final ConcurrentMap<Long, Integer> sizeByUser = new ConcurrentHashMap<>();
+
+    SubscriptionRegistry() {
+        ServiceMetrics.instance().gauge("subscriptions.live", size::get);
+        ServiceMetrics.instance().gauge("subscriptions.estimatedBytes",
+                () -> (long) size.get() * ESTIMATED_BYTES_PER_SUBSCRIPTION);
+    }
+
+    AddResult add(ConcertSubscription subscription) {
+        if (size.incrementAndGet() > ServiceConfig.SUBSCRIPTION_MAX) {
+            size.decrementAndGet();
+            return AddResult.FULL;
+        }
+        if (sizeByUser.merge(subscription.userId, 1, Integer::sum) > ServiceConfig.SUBSCRIPTION_MAX_PER_USER) {
+            decrementUser(subscription.userId);
+            size.decrementAndGet();
+            return AddResult.FULL_FOR_USER;
+        }
+
+        TreeMap<Integer, Set<ConcertSubscription>> byThreshold = subscriptions.computeIfAbsent(
+                new ConcertDateKey(subscription.info.getConcertId(), subscription.info.getDate()), key -> new TreeMap<>());
+        synchronized (byThreshold) {
+            byThreshold.computeIfAbsent(subscription.info.getPercentageBooked(), threshold -> new LinkedHashSet<>())
+                    .add(subscription);
+        }
+        return AddResult.ADDED;
+    }
+
+    /**
+     * Removes a subscription, if it hasn't been removed already.
+     */
+    void remove(ConcertSubscription subscription) {
+        TreeMap<Integer, Set<ConcertSubscription>> byThreshold = subscriptions.get(
+                new ConcertDateKey(subscription.info.getConcertId(), subscription.info.getDate()));
+        if (byThreshold == null) {
+            return;
+        }
+
+        synchronized (byThreshold) {
+            Set<ConcertSubscription> atThreshold = byThreshold.get(subscription.info.getPercentageBooked());
+            if (atThreshold == null || !atThreshold.remove(subscription)) {
+                return;
+            }
+            if (atThreshold.isEmpty()) {
+                byThreshold.remove(subscription.info.getPercentageBooked());
+            }
+        }
+        removed(subscription);
+    }
+
+    /**
+     * Removes and returns the subscriptions to the given concert date whose threshold is at or below the given
+     * percentage of seats booked.
+     */
+    List<ConcertSubscription> removeReached(long concertId, LocalDateTime date, float percentageBooked) {
+        TreeMap<Integer, Set<ConcertSubscription>> byThreshold = subscriptions.get(new ConcertDateKey(concertId, date));
+        List<ConcertSubscription> reached = new ArrayList<>();
+        if (byThreshold == null) {
+            return reached;
+        }
+
+        synchronized (byThreshold) {
+            // thresholds are whole percentages, so every threshold <= percentageBooked is <= its floor
+            Iterator<Set<ConcertSubscription>> iterator =
+                    byThreshold.headMap((int) Math.floor(percentageBooked), true).values().iterator();
+            while (iterator.hasNext()) {
+                reached.addAll(iterator.next());
+                iterator.remove();
+            }
+        }
+        for (ConcertSubscription subscription : reached) {
+            removed(subscription);
+        }
+        return reached;
+    }
+
+    /**
+     * @return the number of pending subscriptions
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * @return the number of users with pending subscriptions
+     */
+    int numUsers() {
+        return sizeByUser.size();
+    }
+
+    private void removed(ConcertSubscription subscription) {
+        size.decrementAndGet();
+        decrementUser(subscription.userId);
+    }
+
+    // users' counts are dropped when they reach zero, so the map only holds users with pending subscriptions
+    private void decrementUser(long userId) {
+        sizeByUser.computeIfPresent(userId, (id, userSize) -> userSize == 1 ? null : userSize - 1);
+    }
+}
@@ -0,0 +1,23 @@
+package proj.concert.service.services;
+
+/**
+ * The user a request is authenticated as: just enough of a {@link proj.concert.service.domain.User} to authorise the
+ * request and to refer to the user, without holding a managed entity.
+ */
+class UserPrincipal {
+    private final long id;
+    private final String username;
+
+    UserPrincipal(long id, String username) {
+        this.id = id;
+        this.username = username;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    String getUsername() {
+        return username;
+    }
+}
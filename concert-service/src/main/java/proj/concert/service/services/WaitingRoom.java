@@ -0,0 +1,273 @@
+package proj.concert.service.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import proj.concert.service.util.HashedTimingWheel;
+import proj.concert.service.util.ServiceConfig;
+import proj.concert.service.util.SparseFenwickTree;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Singleton virtual waiting room, which limits how many sessions may use the booking endpoints for a concert date at
+ * once. Each date has a FIFO queue of admission tokens; a session leaves when it books, is released, or its token
+ * expires (see {@link ServiceConfig#WAITING_ROOM_SESSION_SECONDS} and {@link ServiceConfig#WAITING_ROOM_IDLE_SECONDS}).
+ */
+public class WaitingRoom {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(WaitingRoom.class);
+
+    public static final String ADMISSION_TOKEN_HEADER = "X-Admission-Token";
+
+    private static final long INITIAL_SESSION_ESTIMATE_MILLIS = 60000;
+
+    private static WaitingRoom instance = null;
+
+    private final ConcurrentMap<LocalDateTime, DateQueue> queues = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Admission> admissions = new ConcurrentHashMap<>();
+    private final HashedTimingWheel<Admission> expiryWheel =
+            new HashedTimingWheel<>("waiting-room-expiry", 1000, 512, this::checkExpiry);
+
+    private final int maxActive;
+
+    protected WaitingRoom() {
+        this(ServiceConfig.WAITING_ROOM_MAX_ACTIVE);
+    }
+
+    /**
+     * @param maxActive the number of sessions per date that may be admitted at once
+     */
+    WaitingRoom(int maxActive) {
+        this.maxActive = maxActive;
+    }
+
+    public static synchronized WaitingRoom instance() {
+        if (instance == null) {
+            instance = new WaitingRoom();
+        }
+        return instance;
+    }
+
+    public static boolean isEnabled() {
+        return ServiceConfig.WAITING_ROOM_MAX_ACTIVE > 0;
+    }
+
+    /**
+     * Issues a new admission token for the given date, at the back of the queue.
+     */
+    public Admission join(LocalDateTime date) {
+        DateQueue queue = queues.computeIfAbsent(date, d -> new DateQueue(maxActive));
+        Admission admission = new Admission(UUID.randomUUID().toString(), date, queue, queue.join());
+        admissions.put(admission.token, admission);
+        expiryWheel.schedule(admission, ServiceConfig.WAITING_ROOM_IDLE_SECONDS * 1000);
+        return admission;
+    }
+
+    /**
+     * Looks up an admission token, and records that it has been used.
+     *
+     * @return the admission, or null if the token is unknown or has left the waiting room
+     */
+    public Admission get(String token) {
+        Admission admission = token == null ? null : admissions.get(token);
+        if (admission != null) {
+            admission.lastUsed = System.currentTimeMillis();
+        }
+        return admission;
+    }
+
+    /**
+     * Removes the given session from the waiting room, letting the next in line in.
+     */
+    public void leave(Admission admission) {
+        if (!admission.left.compareAndSet(false, true)) {
+            return;
+        }
+        admissions.remove(admission.token);
+        admission.queue.depart(admission.ticket);
+
+        long admittedAt = admission.admittedAt.get();
+        if (admittedAt > 0) {
+            // exponentially weighted moving average of session length, used to estimate waiting times
+            long sessionMillis = System.currentTimeMillis() - admittedAt;
+            admission.queue.averageSessionMillis.updateAndGet(average -> (average * 7 + sessionMillis) / 8);
+        }
+    }
+
+    /**
+     * Discards all tokens and queues.
+     */
+    public void clear() {
+        for (Admission admission : admissions.values()) {
+            admission.left.set(true);
+        }
+        admissions.clear();
+        queues.clear();
+    }
+
+    private void checkExpiry(Admission admission) {
+        if (admission.left.get()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long admittedAt = admission.admittedAt.get();
+        if (now - admission.lastUsed >= ServiceConfig.WAITING_ROOM_IDLE_SECONDS * 1000
+                || (admittedAt > 0 && now - admittedAt >= ServiceConfig.WAITING_ROOM_SESSION_SECONDS * 1000)) {
+            LOGGER.debug("Waiting room token for " + admission.date + " expired");
+            leave(admission);
+        } else {
+            expiryWheel.schedule(admission, ServiceConfig.WAITING_ROOM_IDLE_SECONDS * 1000);
+        }
+    }
+
+    private static class DateQueue {
+        static final int WAITING = 0;
+        static final int ADMITTED = 1;
+        static final int DEPARTED = 2;
+
+        final int maxActive;
+        final AtomicLong averageSessionMillis = new AtomicLong(INITIAL_SESSION_ESTIMATE_MILLIS);
+
+        // tickets below admittedUpTo have been admitted, or skipped because they left while waiting
+        private final AtomicLong nextTicket = new AtomicLong();
+        private final AtomicLong admittedUpTo = new AtomicLong();
+        private final AtomicInteger numActive = new AtomicInteger();
+        // the state of each ticket from when it joins until it is admitted or skipped. The joiner and the admitter
+        // both put the state if it isn't there yet, so a ticket admitted before its joiner has put its state isn't
+        // missed; the joiner then takes that state instead.
+        private final ConcurrentMap<Long, AtomicInteger> undecided = new ConcurrentHashMap<>();
+        // a count of 1 for each ticket that left while waiting and hasn't yet been skipped
+        private final SparseFenwickTree departedWaiting = new SparseFenwickTree();
+
+        DateQueue(int maxActive) {
+            this.maxActive = maxActive;
+        }
+
+        Ticket join() {
+            long number = nextTicket.getAndIncrement();
+            AtomicInteger state = new AtomicInteger(WAITING);
+            AtomicInteger decided = undecided.putIfAbsent(number, state);
+            if (decided != null) {
+                undecided.remove(number);
+                state = decided;
+            }
+            admit();
+            return new Ticket(number, state);
+        }
+
+        void depart(Ticket ticket) {
+            if (ticket.state.compareAndSet(WAITING, DEPARTED)) {
+                departedWaiting.add(ticket.number, 1);
+            } else if (ticket.state.compareAndSet(ADMITTED, DEPARTED)) {
+                numActive.decrementAndGet();
+            }
+            admit();
+        }
+
+        // the number of waiting tickets up to and including the given one, or 0 if it has been admitted
+        long position(Ticket ticket) {
+            if (ticket.state.get() == ADMITTED) {
+                return 0;
+            }
+            long ahead = ticket.number - admittedUpTo.get() - departedWaiting.sumBelow(ticket.number);
+            return Math.max(1, ahead + 1);
+        }
+
+        // Admits waiting tickets in order while there are places for them. A place is reserved before the next
+        // ticket is taken, and given back if another thread took that ticket first or it turns out to have left.
+        // Whoever gives a place back tries again, so a ticket that joins meanwhile is never left waiting for a free
+        // place.
+        private void admit() {
+            while (true) {
+                int active = numActive.get();
+                long number = admittedUpTo.get();
+                if (active >= maxActive || number >= nextTicket.get()) {
+                    return;
+                }
+                if (!numActive.compareAndSet(active, active + 1)) {
+                    continue;
+                }
+                if (!admittedUpTo.compareAndSet(number, number + 1)) {
+                    numActive.decrementAndGet();
+                    continue;
+                }
+
+                AtomicInteger state = undecided.putIfAbsent(number, new AtomicInteger(ADMITTED));
+                if (state != null) {
+                    undecided.remove(number);
+                    if (!state.compareAndSet(WAITING, ADMITTED)) {
+                        numActive.decrementAndGet();
+                        departedWaiting.add(number, -1);
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Ticket {
+        final long number;
+        final AtomicInteger state;
+
+        Ticket(long number, AtomicInteger state) {
+            this.number = number;
+            this.state = state;
+        }
+    }
+
+    /**
+     * A place in the waiting room for one concert date.
+     */
+    public static class Admission {
+        private final String token;
+        private final LocalDateTime date;
+        private final DateQueue queue;
+        private final Ticket ticket;
+        private final AtomicLong admittedAt = new AtomicLong();
+        private final AtomicBoolean left = new AtomicBoolean();
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private Admission(String token, LocalDateTime date, DateQueue queue, Ticket ticket) {
+            this.token = token;
+            this.date = date;
+            this.queue = queue;
+            this.ticket = ticket;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public LocalDateTime getDate() {
+            return date;
+        }
+
+        /**
+         * @return the number of sessions that must leave before this one is admitted, or 0 if it has been admitted
+         */
+        public long getPosition() {
+            long position = queue.position(ticket);
+            if (position > 0) {
+                return position;
+            }
+            admittedAt.compareAndSet(0, System.currentTimeMillis());
+            return 0;
+        }
+
+        public boolean isAdmitted() {
+            return getPosition() == 0;
+        }
+
+        public long getEstimatedWaitSeconds() {
+            if (queue.maxActive <= 0) {
+                return 0;
+            }
+            return getPosition() * queue.averageSessionMillis.get() / queue.maxActive / 1000;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package proj.concert.service.util;
+
+import javax.ws.rs.core.EntityTag;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Singleton generation number for the concert and performer catalog, which changes whenever the catalog might have.
+ * Responses built from the catalog are tagged with {@link #entityTag()}, so clients can revalidate their copies without
+ * the catalog being queried.
+ * <p>
+ * The generation starts from the time the service started, so tags issued before a restart aren't mistaken for
+ * current ones.
+ */
+public class CatalogGeneration {
+
+    private static final CatalogGeneration instance = new CatalogGeneration();
+
+    private final AtomicLong generation = new AtomicLong(System.currentTimeMillis());
+
+    protected CatalogGeneration() {
+    }
+
+    public static CatalogGeneration instance() {
+        return instance;
+    }
+
+    /**
+     * Records that the catalog has (or may have) changed.
+     */
+    public void bump() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * @return a strong entity tag identifying the current generation of the catalog
+     */
+    public EntityTag entityTag() {
+        return new EntityTag(Long.toString(generation.get(), 36));
+    }
+}
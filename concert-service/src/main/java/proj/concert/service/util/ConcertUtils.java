@@ -1,18 +1,26 @@
 package proj.concert.service.util;
 
+import org.hibernate.annotations.QueryHints;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import proj.concert.service.domain.Concert;
 import proj.concert.service.domain.Seat;
+import proj.concert.service.services.CatalogCache;
 import proj.concert.service.services.ConcertApplication;
 import proj.concert.service.services.PersistenceManager;
+import proj.concert.service.services.SeatHoldRegistry;
+import proj.concert.service.services.SessionCache;
+import proj.concert.service.services.WaitingRoom;
 
 import javax.persistence.EntityManager;
 import javax.persistence.TypedQuery;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class ConcertUtils {
@@ -31,7 +39,9 @@ public class ConcertUtils {
 
             // Get all concerts
             em.getTransaction().begin();
-            TypedQuery<Concert> query = em.createQuery("select c from Concert c", Concert.class);
+            TypedQuery<Concert> query = em.createQuery("select distinct c from Concert c", Concert.class)
+                    .setHint(QueryHints.PASS_DISTINCT_THROUGH, false);
+            PersistenceManager.fetchGraph(em, Concert.DATES_GRAPH).forEach(query::setHint);
             List<Concert> concerts = query.getResultList();
 
             // Get all dates for all concerts
@@ -61,8 +71,38 @@ public class ConcertUtils {
             }
 
             LOGGER.debug("initConcerts(): Created " + seatCount + " seats!");
+
+            // The catalog may have been reloaded along with the database, so encode it afresh
+            CatalogCache.instance().rebuild();
+
+            // Seed the availability index, then replay any bookings that survived a restart. Holds only live in memory,
+            // so none survive.
+            SeatHoldRegistry.instance().clear();
+            WaitingRoom.instance().clear();
+            SessionCache.instance().clear();
+            SeatAvailabilityIndex.instance().reset(allDates);
+            replayBookings(em);
         } finally {
             em.close();
         }
     }
+
+    /**
+     * Rebuilds the booked-seat bitmaps in {@link SeatAvailabilityIndex} from the BOOKINGS table, so that bookings
+     * made before a restart can't be claimed again.
+     */
+    private static void replayBookings(EntityManager em) {
+        em.getTransaction().begin();
+        List<Object[]> bookedSeats = em.createQuery("select b.date, s.label from Booking b join b.seats s", Object[].class)
+                .getResultList();
+        em.getTransaction().commit();
+
+        Map<LocalDateTime, List<String>> labelsByDate = new HashMap<>();
+        for (Object[] bookedSeat : bookedSeats) {
+            labelsByDate.computeIfAbsent((LocalDateTime) bookedSeat[0], date -> new ArrayList<>()).add((String) bookedSeat[1]);
+        }
+        labelsByDate.forEach(SeatAvailabilityIndex.instance()::markBooked);
+
+        LOGGER.debug("initConcerts(): Replayed " + bookedSeats.size() + " booked seats");
+    }
 }
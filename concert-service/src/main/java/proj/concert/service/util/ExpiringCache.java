@@ -0,0 +1,159 @@
+package proj.concert.service.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A bounded, thread-safe cache whose entries expire after a time-to-live.
+ * <p>
+ * The cache is split into segments by key hash, each guarded by its own lock, so that concurrent callers rarely
+ * contend with each other. Within a segment, entries are kept in access order: once a segment is full, its least
+ * recently used entry is evicted. Expired entries are dropped when they are next looked up, or when they reach the
+ * end of the LRU order.
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+public class ExpiringCache<K, V> {
+
+    private static final int SEGMENTS = 16;
+
+    private final long ttlMillis;
+    private final Segment<K, V>[] segments;
+
+    /**
+     * @param maxSize   the maximum number of entries the cache will hold
+     * @param ttlMillis how long an entry lives after being added, unless a different time-to-live is given to
+     *                  {@link #put(Object, Object, long)}
+     */
+    @SuppressWarnings("unchecked")
+    public ExpiringCache(int maxSize, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.segments = new Segment[SEGMENTS];
+        int segmentSize = Math.max(1, (maxSize + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment<>(segmentSize);
+        }
+    }
+
+    /**
+     * @return the value for the given key, or null if there is none or it has expired
+     */
+    public V get(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            Entry<V> entry = segment.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.isExpired()) {
+                segment.remove(key);
+                return null;
+            }
+            return entry.value;
+        }
+    }
+
+    public void put(K key, V value) {
+        put(key, value, ttlMillis);
+    }
+
+    public void put(K key, V value, long ttlMillis) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, new Entry<>(value, System.currentTimeMillis() + ttlMillis));
+        }
+    }
+
+    /**
+     * Returns the value for the given key, adding one computed by the given function if there is none (or it has
+     * expired). The function is called while holding the lock for the key's segment, so it should be quick.
+     */
+    public V computeIfAbsent(K key, Function<K, V> mappingFunction) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            Entry<V> entry = segment.get(key);
+            if (entry == null || entry.isExpired()) {
+                entry = new Entry<>(mappingFunction.apply(key), System.currentTimeMillis() + ttlMillis);
+                segment.put(key, entry);
+            }
+            return entry.value;
+        }
+    }
+
+    public void remove(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            segment.remove(key);
+        }
+    }
+
+    /**
+     * Removes the entry for the given key, but only if it currently maps to the given value.
+     */
+    public void remove(K key, V value) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            Entry<V> entry = segment.get(key);
+            if (entry != null && entry.value == value) {
+                segment.remove(key);
+            }
+        }
+    }
+
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * @return the number of entries in the cache, including any that have expired but not yet been dropped
+     */
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return segments[hash & (SEGMENTS - 1)];
+    }
+
+    private static class Segment<K, V> extends LinkedHashMap<K, Entry<V>> {
+        private final int maxSize;
+
+        Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+            return size() > maxSize || eldest.getValue().isExpired();
+        }
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+    }
+}
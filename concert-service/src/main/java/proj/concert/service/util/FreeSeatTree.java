@@ -0,0 +1,123 @@
+package proj.concert.service.util;
+
+/**
+ * A segment tree over the seats of the theatre (in {@link TheatreLayout#seatIndex(String)} order) that tracks runs of
+ * adjacent free seats. Runs never cross from one row into the next, so every run it reports is a contiguous block of
+ * seats in a single row.
+ * <p>
+ * Each node stores the length of the free run at the start of its range, at the end of its range, and the longest
+ * free run anywhere in its range. Marking a seat free or taken is O(log n), and finding the first free run of a given
+ * length is O(log n) as well.
+ * <p>
+ * This class is not thread-safe.
+ */
+public class FreeSeatTree {
+
+    private final int size;
+    private final int[] prefix;
+    private final int[] suffix;
+    private final int[] best;
+    private final int[] length;
+
+    /**
+     * Creates a tree in which every seat is free.
+     */
+    public FreeSeatTree() {
+        this.size = TheatreLayout.NUM_SEATS_IN_THEATRE;
+        prefix = new int[4 * size];
+        suffix = new int[4 * size];
+        best = new int[4 * size];
+        length = new int[4 * size];
+        build(1, 0, size - 1);
+    }
+
+    /**
+     * Marks the given seat as free or taken.
+     */
+    public void set(int seat, boolean free) {
+        update(1, 0, size - 1, seat, free);
+    }
+
+    /**
+     * Finds the first run of at least the given number of free seats that lies entirely within the given rows.
+     *
+     * @param fromRow the first row to search (0 = row A)
+     * @param toRow   the row after the last row to search
+     * @return the index of the first seat in the run, or -1 if there is no such run
+     */
+    public int findFreeRun(int numSeats, int fromRow, int toRow) {
+        if (numSeats <= 0 || numSeats > TheatreLayout.NUM_SEATS_PER_ROW) {
+            return -1;
+        }
+        return find(1, 0, size - 1, numSeats,
+                fromRow * TheatreLayout.NUM_SEATS_PER_ROW, toRow * TheatreLayout.NUM_SEATS_PER_ROW - 1);
+    }
+
+    private void build(int node, int lo, int hi) {
+        length[node] = hi - lo + 1;
+        if (lo == hi) {
+            prefix[node] = suffix[node] = best[node] = 1;
+            return;
+        }
+        int mid = (lo + hi) / 2;
+        build(2 * node, lo, mid);
+        build(2 * node + 1, mid + 1, hi);
+        pull(node, mid);
+    }
+
+    private void update(int node, int lo, int hi, int seat, boolean free) {
+        if (lo == hi) {
+            prefix[node] = suffix[node] = best[node] = free ? 1 : 0;
+            return;
+        }
+        int mid = (lo + hi) / 2;
+        if (seat <= mid) {
+            update(2 * node, lo, mid, seat, free);
+        } else {
+            update(2 * node + 1, mid + 1, hi, seat, free);
+        }
+        pull(node, mid);
+    }
+
+    private void pull(int node, int mid) {
+        int left = 2 * node;
+        int right = 2 * node + 1;
+        boolean joined = sameRow(mid, mid + 1);
+
+        prefix[node] = joined && prefix[left] == length[left] ? length[left] + prefix[right] : prefix[left];
+        suffix[node] = joined && suffix[right] == length[right] ? length[right] + suffix[left] : suffix[right];
+        best[node] = Math.max(best[left], best[right]);
+        if (joined) {
+            best[node] = Math.max(best[node], suffix[left] + prefix[right]);
+        }
+    }
+
+    private int find(int node, int lo, int hi, int numSeats, int from, int to) {
+        if (hi < from || lo > to || best[node] < numSeats) {
+            return -1;
+        }
+        if (lo == hi) {
+            return lo;
+        }
+        int mid = (lo + hi) / 2;
+
+        int found = find(2 * node, lo, mid, numSeats, from, to);
+        if (found >= 0) {
+            return found;
+        }
+
+        // a run that spans the two children
+        if (sameRow(mid, mid + 1) && suffix[2 * node] + prefix[2 * node + 1] >= numSeats) {
+            int start = mid - suffix[2 * node] + 1;
+            if (start >= from && start + numSeats - 1 <= to) {
+                return start;
+            }
+        }
+
+        return find(2 * node + 1, mid + 1, hi, numSeats, from, to);
+    }
+
+    private static boolean sameRow(int seat, int otherSeat) {
+        return seat / TheatreLayout.NUM_SEATS_PER_ROW == otherSeat / TheatreLayout.NUM_SEATS_PER_ROW;
+    }
+}
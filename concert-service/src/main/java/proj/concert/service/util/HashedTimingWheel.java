@@ -0,0 +1,105 @@
+package proj.concert.service.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timing wheel, used to expire large numbers of timeouts without a scheduled task per timeout.
+ * <p>
+ * Time is divided into ticks of a fixed length. Each timeout is placed in the bucket for the tick it expires on
+ * (modulo the size of the wheel), and a single background thread visits one bucket per tick, expiring the timeouts in
+ * it that are due. Scheduling and cancelling are O(1); cancelled timeouts are simply skipped and dropped when their
+ * bucket is next visited.
+ *
+ * @param <T> the type of item that is handed to the expiry callback
+ */
+public class HashedTimingWheel<T> {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(HashedTimingWheel.class);
+
+    private final long tickMillis;
+    private final Queue<Timeout<T>>[] buckets;
+    private final Consumer<T> onExpiry;
+    private final long startTime;
+    private final ScheduledExecutorService ticker;
+
+    private volatile long currentTick = 0;
+
+    /**
+     * @param name       the name of the background thread
+     * @param tickMillis the length of a tick; timeouts expire at most one tick late
+     * @param wheelSize  the number of buckets, rounded up to a power of two
+     * @param onExpiry   called on the background thread for each timeout that expires
+     */
+    @SuppressWarnings("unchecked")
+    public HashedTimingWheel(String name, long tickMillis, int wheelSize, Consumer<T> onExpiry) {
+        this.tickMillis = tickMillis;
+        this.buckets = new Queue[Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.onExpiry = onExpiry;
+        this.startTime = System.currentTimeMillis();
+
+        this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedules the given item to expire after the given delay.
+     *
+     * @return a handle that can be used to cancel the timeout
+     */
+    public Timeout<T> schedule(T item, long delayMillis) {
+        long deadline = System.currentTimeMillis() + delayMillis;
+        long deadlineTick = Math.max((deadline - startTime + tickMillis - 1) / tickMillis, currentTick + 1);
+        Timeout<T> timeout = new Timeout<>(item, deadlineTick);
+        buckets[(int) (deadlineTick & (buckets.length - 1))].add(timeout);
+        return timeout;
+    }
+
+    private void tick() {
+        long tick = ++currentTick;
+        Iterator<Timeout<T>> bucket = buckets[(int) (tick & (buckets.length - 1))].iterator();
+        while (bucket.hasNext()) {
+            Timeout<T> timeout = bucket.next();
+            if (timeout.cancelled) {
+                bucket.remove();
+            } else if (timeout.deadlineTick <= tick) {
+                bucket.remove();
+                try {
+                    onExpiry.accept(timeout.item);
+                } catch (RuntimeException e) {
+                    LOGGER.error("Timeout expiry failed", e);
+                }
+            }
+        }
+    }
+
+    public static class Timeout<T> {
+        private final T item;
+        private final long deadlineTick;
+        private volatile boolean cancelled = false;
+
+        private Timeout(T item, long deadlineTick) {
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package proj.concert.service.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts recorded values (e.g. latencies) into buckets with fixed upper bounds, and reports them to
+ * {@link ServiceMetrics}.
+ * <p>
+ * The gauges are cumulative, as in Prometheus: <code>name.le{bound}</code> counts the values at or below the bound.
+ * <code>name.count</code> counts every value, and <code>name.max</code> is the largest value recorded.
+ */
+public class Histogram {
+
+    private final long[] bounds;
+    // counts[i] counts the values above bounds[i - 1] and at or below bounds[i]; the last counts the values above all
+    private final AtomicLongArray counts;
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param name   the prefix of the histogram's gauges
+     * @param bounds the buckets' upper bounds, in ascending order
+     */
+    public Histogram(String name, long... bounds) {
+        this.bounds = bounds.clone();
+        counts = new AtomicLongArray(bounds.length + 1);
+
+        for (int i = 0; i < bounds.length; i++) {
+            int bucket = i;
+            ServiceMetrics.instance().gauge(name + ".le" + bounds[i], () -> countUpTo(bucket));
+        }
+        ServiceMetrics.instance().gauge(name + ".count", () -> countUpTo(bounds.length));
+        ServiceMetrics.instance().gauge(name + ".max", max::get);
+    }
+
+    public void record(long value) {
+        int bucket = 0;
+        while (bucket < bounds.length && value > bounds[bucket]) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    private long countUpTo(int bucket) {
+        long count = 0;
+        for (int i = 0; i <= bucket; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+}
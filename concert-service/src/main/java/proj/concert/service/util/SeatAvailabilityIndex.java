@@ -0,0 +1,513 @@
+package proj.concert.service.util;
+
+import proj.concert.common.types.BookingStatus;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * Singleton in-memory index of which seats are booked or held for each concert date.
+ * <p>
+ * Each date is represented by a {@link SeatMap}: a pair of bitsets (one bit per seat, indexed by
+ * {@link TheatreLayout#seatIndex(String)}) recording booked and held seats. Seat maps are never modified in place -
+ * every change swaps in a new copy - so readers can answer seat queries from a consistent snapshot without taking any
+ * locks, and without touching the database.
+ * <p>
+ * The index is seeded by {@link ConcertUtils#initConcerts()}, which also replays any bookings already in the
+ * database. With the {@link ServiceConfig.BookingEngine#LOCKING} engine it is updated as bookings are committed; with
+ * the {@link ServiceConfig.BookingEngine#CAS} and {@link ServiceConfig.BookingEngine#SEQUENCER} engines it is the
+ * authority on which seats are taken, and seats are claimed here before their booking is persisted. Holds are only ever recorded here.
+ * <p>
+ * Each date also keeps a {@link FreeSeatTree}, so that blocks of adjacent available seats can be found without
+ * scanning every seat, and a count of its booked seats, so that occupancy can be checked without counting them.
+ * <p>
+ * Every change to a date's available seats bumps the date's version, and is recorded in a bounded change log of
+ * {@link ServiceConfig#SEAT_CHANGE_LOG_SIZE} seat changes, so that clients can catch up with
+ * {@link #changesSince(LocalDateTime, long)} rather than fetching every seat. {@link SeatChangeListener}s are told
+ * which seats become unavailable or available again, in the order the changes are made to each date.
+ */
+public class SeatAvailabilityIndex {
+
+    private static final int WORDS = (TheatreLayout.NUM_SEATS_IN_THEATRE + Long.SIZE - 1) / Long.SIZE;
+
+    private static final SeatAvailabilityIndex instance = new SeatAvailabilityIndex();
+
+    private final ConcurrentMap<LocalDateTime, DateEntry> seatMaps = new ConcurrentHashMap<>();
+    private final List<SeatChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    protected SeatAvailabilityIndex() {
+    }
+
+    public static SeatAvailabilityIndex instance() {
+        return instance;
+    }
+
+    /**
+     * Discards all existing state and registers the given dates, with every seat unbooked.
+     */
+    public void reset(Set<LocalDateTime> dates) {
+        seatMaps.clear();
+        for (LocalDateTime date : dates) {
+            seatMaps.put(date, new DateEntry(date));
+        }
+    }
+
+    public void addListener(SeatChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public boolean contains(LocalDateTime date) {
+        return seatMaps.containsKey(date);
+    }
+
+    /**
+     * Records that the seats with the given labels have been booked on the given date. Any holds on those seats are
+     * dropped. Unknown dates and labels are ignored.
+     */
+    public void markBooked(LocalDateTime date, Collection<String> seatLabels) {
+        DateEntry seatMap = seatMaps.get(date);
+        if (seatMap == null) {
+            return;
+        }
+        long[] mask = toMask(seatLabels);
+        seatMap.update(current -> current.withBooked(mask).withoutHeld(mask));
+    }
+
+    /**
+     * Atomically claims the seats with the given labels on the given date. Either all of the seats are claimed, or -
+     * if any of them is already booked, or held by someone else - none of them are.
+     *
+     * @param ownHeld the seats held by the claimant, as returned by {@link #toMask(Collection)}. Those seats may be
+     *                claimed, and are no longer held afterwards.
+     * @return true if the seats were claimed, false if the date is unknown or any of the seats is already taken
+     */
+    public boolean tryClaim(LocalDateTime date, Collection<String> seatLabels, long[] ownHeld) {
+        DateEntry seatMap = seatMaps.get(date);
+        if (seatMap == null) {
+            return false;
+        }
+        long[] mask = toMask(seatLabels);
+        while (true) {
+            SeatMap current = seatMap.get();
+            for (int i = 0; i < WORDS; i++) {
+                if ((current.booked[i] & mask[i]) != 0 || (current.held[i] & ~ownHeld[i] & mask[i]) != 0) {
+                    return false;
+                }
+            }
+            SeatMap updated = current.withBooked(mask).withoutHeld(mask);
+            if (seatMap.compareAndSet(current, updated)) {
+                seatMap.countBooked(current, updated);
+                seatMap.syncTree();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases seats that were previously claimed or booked on the given date, e.g. because their booking could not
+     * be persisted.
+     */
+    public void release(LocalDateTime date, Collection<String> seatLabels) {
+        DateEntry seatMap = seatMaps.get(date);
+        if (seatMap == null) {
+            return;
+        }
+        long[] mask = toMask(seatLabels);
+        seatMap.update(current -> current.withoutBooked(mask));
+    }
+
+    /**
+     * Atomically places a hold on the given seats. Either all of the seats are held, or - if any of them is already
+     * booked or held - none of them are.
+     *
+     * @param mask the seats to hold, as returned by {@link #toMask(Collection)}
+     * @return true if the seats are now held
+     */
+    public boolean tryHold(LocalDateTime date, long[] mask) {
+        DateEntry seatMap = seatMaps.get(date);
+        if (seatMap == null) {
+            return false;
+        }
+        while (true) {
+            SeatMap current = seatMap.get();
+            for (int i = 0; i < WORDS; i++) {
+                if (((current.booked[i] | current.held[i]) & mask[i]) != 0) {
+                    return false;
+                }
+            }
+            if (seatMap.compareAndSet(current, current.withHeld(mask))) {
+                seatMap.syncTree();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases a hold placed by {@link #tryHold(LocalDateTime, long[])}. Seats that have since been booked stay
+     * booked.
+     */
+    public void releaseHold(LocalDateTime date, long[] mask) {
+        DateEntry seatMap = seatMaps.get(date);
+        if (seatMap == null) {
+            return;
+        }
+        seatMap.update(current -> current.withoutHeld(mask));
+    }
+
+    /**
+     * Returns the indexes of the seats on the given date that match the given status, in seat order. Held seats are
+     * reported as booked, as they are unavailable to everyone except the holder. A null status is treated as
+     * {@link BookingStatus#Unbooked}.
+     *
+     * @return the matching seat indexes, or null if the date is not known to the index
+     */
+    public int[] seats(LocalDateTime date, BookingStatus status) {
+        DateEntry seatMap = seatMaps.get(date);
+        if (seatMap == null) {
+            return null;
+        }
+        SeatMap current = seatMap.get();
+
+        int count = 0;
+        int[] result = new int[TheatreLayout.NUM_SEATS_IN_THEATRE];
+        for (int seat = 0; seat < TheatreLayout.NUM_SEATS_IN_THEATRE; seat++) {
+            if (status == BookingStatus.Any || current.isTaken(seat) == (status == BookingStatus.Booked)) {
+                result[count++] = seat;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Returns the number of seats booked on the given date. Held seats aren't counted.
+     *
+     * @return the number of booked seats, or -1 if the date is not known to the index
+     */
+    public int numBooked(LocalDateTime date) {
+        DateEntry seatMap = seatMaps.get(date);
+        return seatMap == null ? -1 : seatMap.numBooked.get();
+    }
+
+    /**
+     * Returns the current version of the given date's seat map. The version starts at 0 and increases each time a seat
+     * becomes available or unavailable.
+     *
+     * @return the version, or -1 if the date is not known to the index
+     */
+    public long version(LocalDateTime date) {
+        DateEntry seatMap = seatMaps.get(date);
+        return seatMap == null ? -1 : seatMap.version();
+    }
+
+    /**
+     * Returns the seats on the given date that have become available or unavailable since the given version of its
+     * seat map. If the changes since then are no longer in the change log (or the version is negative, or newer than
+     * the current version), every unavailable seat is returned instead.
+     *
+     * @return the changes, or null if the date is not known to the index
+     */
+    public SeatChanges changesSince(LocalDateTime date, long version) {
+        DateEntry seatMap = seatMaps.get(date);
+        return seatMap == null ? null : seatMap.changesSince(version);
+    }
+
+    /**
+     * Finds the first block of adjacent available seats in a single row, within the given rows.
+     *
+     * @param fromRow the first row to search (0 = row A)
+     * @param toRow   the row after the last row to search
+     * @return the index of the first seat in the block, or -1 if there is no such block or the date is unknown
+     */
+    public int findFreeRun(LocalDateTime date, int numSeats, int fromRow, int toRow) {
+        DateEntry seatMap = seatMaps.get(date);
+        if (seatMap == null) {
+            return -1;
+        }
+        synchronized (seatMap) {
+            seatMap.syncTree();
+            return seatMap.freeSeats.findFreeRun(numSeats, fromRow, toRow);
+        }
+    }
+
+    /**
+     * Converts seat labels to a bitset of the kind used by this index. Labels that don't name a seat are ignored.
+     */
+    public static long[] toMask(Collection<String> seatLabels) {
+        long[] mask = new long[WORDS];
+        for (String label : seatLabels) {
+            int seat = TheatreLayout.seatIndex(label);
+            if (seat >= 0) {
+                mask[seat / Long.SIZE] |= 1L << (seat % Long.SIZE);
+            }
+        }
+        return mask;
+    }
+
+    public static long[] emptyMask() {
+        return new long[WORDS];
+    }
+
+    /**
+     * Receives the changes made to the index. Listeners are called on the thread that made the change, while the date's
+     * entry is locked, so they must be quick.
+     */
+    public interface SeatChangeListener {
+        /**
+         * @param version the version of the date's seat map after the change
+         * @param taken   the indexes of the seats that have been booked or held
+         * @param freed   the indexes of the seats that have been released
+         */
+        void seatsChanged(LocalDateTime date, long version, int[] taken, int[] freed);
+    }
+
+    /**
+     * The result of {@link #changesSince(LocalDateTime, long)}.
+     */
+    public static final class SeatChanges {
+        private final long version;
+        private final boolean full;
+        private final int[] taken;
+        private final int[] freed;
+
+        SeatChanges(long version, boolean full, int[] taken, int[] freed) {
+            this.version = version;
+            this.full = full;
+            this.taken = taken;
+            this.freed = freed;
+        }
+
+        /**
+         * @return the version of the seat map that these changes bring the caller up to
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return true if these changes are a full snapshot: every unavailable seat is in {@link #getTaken()}, and
+         * every other seat is available
+         */
+        public boolean isFull() {
+            return full;
+        }
+
+        /**
+         * @return the indexes of the seats that have become unavailable, in seat order
+         */
+        public int[] getTaken() {
+            return taken;
+        }
+
+        /**
+         * @return the indexes of the seats that have become available, in seat order
+         */
+        public int[] getFreed() {
+            return freed;
+        }
+    }
+
+    /**
+     * The seat map for one date, along with a {@link FreeSeatTree} of its available seats and a count of its booked
+     * seats. The tree is brought up to date after each change, and only ever from the latest seat map, so concurrent
+     * changes can't be applied to it out of order. The count is adjusted by the seats each change books or releases,
+     * and the changes that reach the tree are recorded in the date's change log.
+     */
+    private final class DateEntry extends AtomicReference<SeatMap> {
+        private final LocalDateTime date;
+        private final FreeSeatTree freeSeats = new FreeSeatTree();
+        private long[] takenInTree = new long[WORDS];
+        private final AtomicInteger numBooked = new AtomicInteger();
+
+        // the version of the seat map that takenInTree reflects
+        private long version = 0;
+        // the change log, a ring of seat changes: the version that made each change, and the seat's index (or, if the
+        // seat was freed, -(index + 1))
+        private final long[] logVersions = new long[ServiceConfig.SEAT_CHANGE_LOG_SIZE];
+        private final int[] logSeats = new int[ServiceConfig.SEAT_CHANGE_LOG_SIZE];
+        private int logStart = 0;
+        private int logSize = 0;
+        // the latest version whose changes have been dropped from the log
+        private long droppedThrough = 0;
+
+        DateEntry(LocalDateTime date) {
+            super(new SeatMap(new long[WORDS], new long[WORDS]));
+            this.date = date;
+        }
+
+        void update(UnaryOperator<SeatMap> change) {
+            while (true) {
+                SeatMap current = get();
+                SeatMap updated = change.apply(current);
+                if (compareAndSet(current, updated)) {
+                    countBooked(current, updated);
+                    syncTree();
+                    return;
+                }
+            }
+        }
+
+        void countBooked(SeatMap before, SeatMap after) {
+            for (int i = 0; i < WORDS; i++) {
+                long changed = before.booked[i] ^ after.booked[i];
+                while (changed != 0) {
+                    int bit = Long.numberOfTrailingZeros(changed);
+                    numBooked.addAndGet((after.booked[i] & (1L << bit)) != 0 ? 1 : -1);
+                    changed &= changed - 1;
+                }
+            }
+        }
+
+        synchronized void syncTree() {
+            SeatMap current = get();
+            int numTaken = 0;
+            int numFreed = 0;
+            int[] takenSeats = new int[TheatreLayout.NUM_SEATS_IN_THEATRE];
+            int[] freedSeats = new int[TheatreLayout.NUM_SEATS_IN_THEATRE];
+            for (int i = 0; i < WORDS; i++) {
+                long taken = current.booked[i] | current.held[i];
+                long changed = taken ^ takenInTree[i];
+                while (changed != 0) {
+                    int bit = Long.numberOfTrailingZeros(changed);
+                    int seat = i * Long.SIZE + bit;
+                    boolean free = (taken & (1L << bit)) == 0;
+                    freeSeats.set(seat, free);
+                    if (free) {
+                        freedSeats[numFreed++] = seat;
+                    } else {
+                        takenSeats[numTaken++] = seat;
+                    }
+                    changed &= changed - 1;
+                }
+                takenInTree[i] = taken;
+            }
+
+            if (numTaken + numFreed > 0) {
+                version++;
+                for (int i = 0; i < numTaken; i++) {
+                    log(takenSeats[i]);
+                }
+                for (int i = 0; i < numFreed; i++) {
+                    log(-(freedSeats[i] + 1));
+                }
+                for (SeatChangeListener listener : listeners) {
+                    listener.seatsChanged(date, version, Arrays.copyOf(takenSeats, numTaken), Arrays.copyOf(freedSeats, numFreed));
+                }
+            }
+        }
+
+        private void log(int change) {
+            int end = (logStart + logSize) % logSeats.length;
+            if (logSize == logSeats.length) {
+                droppedThrough = logVersions[logStart];
+                logStart = (logStart + 1) % logSeats.length;
+            } else {
+                logSize++;
+            }
+            logVersions[end] = version;
+            logSeats[end] = change;
+        }
+
+        synchronized long version() {
+            return version;
+        }
+
+        synchronized SeatChanges changesSince(long since) {
+            if (since < droppedThrough || since > version) {
+                int numTaken = 0;
+                int[] takenSeats = new int[TheatreLayout.NUM_SEATS_IN_THEATRE];
+                for (int seat = 0; seat < TheatreLayout.NUM_SEATS_IN_THEATRE; seat++) {
+                    if ((takenInTree[seat / Long.SIZE] & (1L << (seat % Long.SIZE))) != 0) {
+                        takenSeats[numTaken++] = seat;
+                    }
+                }
+                return new SeatChanges(version, true, Arrays.copyOf(takenSeats, numTaken), new int[0]);
+            }
+
+            // replay the logged changes after the given version, keeping only each seat's latest state
+            Boolean[] nowTaken = new Boolean[TheatreLayout.NUM_SEATS_IN_THEATRE];
+            for (int i = 0; i < logSize; i++) {
+                int pos = (logStart + i) % logSeats.length;
+                if (logVersions[pos] > since) {
+                    int change = logSeats[pos];
+                    if (change >= 0) {
+                        nowTaken[change] = true;
+                    } else {
+                        nowTaken[-change - 1] = false;
+                    }
+                }
+            }
+
+            int numTaken = 0;
+            int numFreed = 0;
+            int[] takenSeats = new int[TheatreLayout.NUM_SEATS_IN_THEATRE];
+            int[] freedSeats = new int[TheatreLayout.NUM_SEATS_IN_THEATRE];
+            for (int seat = 0; seat < TheatreLayout.NUM_SEATS_IN_THEATRE; seat++) {
+                if (nowTaken[seat] == Boolean.TRUE) {
+                    takenSeats[numTaken++] = seat;
+                } else if (nowTaken[seat] == Boolean.FALSE) {
+                    freedSeats[numFreed++] = seat;
+                }
+            }
+            return new SeatChanges(version, false, Arrays.copyOf(takenSeats, numTaken), Arrays.copyOf(freedSeats, numFreed));
+        }
+    }
+
+    /**
+     * An immutable snapshot of the booked and held seats for one date.
+     */
+    private static final class SeatMap {
+        final long[] booked;
+        final long[] held;
+
+        SeatMap(long[] booked, long[] held) {
+            this.booked = booked;
+            this.held = held;
+        }
+
+        boolean isTaken(int seat) {
+            long bit = 1L << (seat % Long.SIZE);
+            return ((booked[seat / Long.SIZE] | held[seat / Long.SIZE]) & bit) != 0;
+        }
+
+        SeatMap withBooked(long[] mask) {
+            return new SeatMap(or(booked, mask), held);
+        }
+
+        SeatMap withoutBooked(long[] mask) {
+            return new SeatMap(andNot(booked, mask), held);
+        }
+
+        SeatMap withHeld(long[] mask) {
+            return new SeatMap(booked, or(held, mask));
+        }
+
+        SeatMap withoutHeld(long[] mask) {
+            return new SeatMap(booked, andNot(held, mask));
+        }
+
+        private static long[] or(long[] bits, long[] mask) {
+            long[] result = new long[WORDS];
+            for (int i = 0; i < WORDS; i++) {
+                result[i] = bits[i] | mask[i];
+            }
+            return result;
+        }
+
+        private static long[] andNot(long[] bits, long[] mask) {
+            long[] result = new long[WORDS];
+            for (int i = 0; i < WORDS; i++) {
+                result[i] = bits[i] & ~mask[i];
+            }
+            return result;
+        }
+    }
+}
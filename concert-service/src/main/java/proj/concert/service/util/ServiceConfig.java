@@ -0,0 +1,224 @@
+package proj.concert.service.util;
+
+/**
+ * Tunable settings for the concert service. Each setting can be overridden with a JVM system property of the same
+ * name (e.g. <code>-Dconcert.booking.engine=cas</code>); otherwise the default shown here is used.
+ */
+public class ServiceConfig {
+
+    /**
+     * How seat claims are decided when making a booking. See {@link BookingEngine}.
+     */
+    public static final BookingEngine BOOKING_ENGINE =
+            BookingEngine.valueOf(System.getProperty("concert.booking.engine", "locking").toUpperCase());
+
+    /**
+     * How long clients may reuse a catalog response (concerts and performers) before revalidating it with its ETag.
+     */
+    public static final int CATALOG_MAX_AGE_SECONDS = Integer.getInteger("concert.catalog.maxAgeSeconds", 60);
+
+    /**
+     * The most concerts, performers or bookings returned in one page. Also the size of a page if the client doesn't
+     * give a limit.
+     */
+    public static final int PAGE_MAX_LIMIT = Integer.getInteger("concert.page.maxLimit", 100);
+
+    /**
+     * Response bodies of at least this many bytes are compressed, if the client accepts gzip or deflate. Smaller
+     * bodies aren't worth the CPU time or the compression format's overhead.
+     */
+    public static final int COMPRESSION_MIN_BYTES = Integer.getInteger("concert.compression.minBytes", 1024);
+
+    /**
+     * Whether database connections come from a HikariCP pool. If not, Hibernate's built-in pool is used, which is only
+     * meant for development; it is kept so that the two can be compared.
+     */
+    public static final boolean DB_POOLED = Boolean.parseBoolean(System.getProperty("concert.db.pooled", "true"));
+
+    /**
+     * The number of idle connections the pool keeps ready.
+     */
+    public static final int DB_POOL_MIN_IDLE = Integer.getInteger("concert.db.pool.minIdle", 2);
+
+    /**
+     * The maximum number of connections in the pool, in use or idle.
+     */
+    public static final int DB_POOL_MAX_SIZE = Integer.getInteger("concert.db.pool.maxSize", 10);
+
+    /**
+     * How long a request waits for a connection from the pool before failing.
+     */
+    public static final long DB_POOL_TIMEOUT_MILLIS = Long.getLong("concert.db.pool.timeoutMillis", 5000L);
+
+    /**
+     * How long a connection may be out of the pool before a possible leak is logged, with the stack trace of where it
+     * was taken. 0 turns leak detection off.
+     */
+    public static final long DB_POOL_LEAK_DETECTION_MILLIS = Long.getLong("concert.db.pool.leakDetectionMillis", 30000L);
+
+    /**
+     * The number of parsed statements each pooled connection keeps for reuse.
+     */
+    public static final int DB_STATEMENT_CACHE_SIZE = Integer.getInteger("concert.db.statementCacheSize", 64);
+
+    /**
+     * The maximum number of bookings the write-behind writer will persist in a single transaction.
+     */
+    public static final int WRITE_BEHIND_BATCH_SIZE = Integer.getInteger("concert.writebehind.batchSize", 64);
+
+    /**
+     * How long a retried booking request (one reusing an Idempotency-Key) will wait for the original request's outcome
+     * before giving up with a 409. The original request itself always waits for its booking to be persisted, or not.
+     */
+    public static final long WRITE_BEHIND_TIMEOUT_MILLIS = Long.getLong("concert.writebehind.timeoutMillis", 10000L);
+
+    /**
+     * The number of booking requests per concert date that the sequencer engine will queue before turning requests
+     * away.
+     */
+    public static final int SEQUENCER_RING_SIZE = Integer.getInteger("concert.sequencer.ringSize", 1024);
+
+    /**
+     * How long a seat hold lasts before its seats are released.
+     */
+    public static final long HOLD_TTL_SECONDS = Long.getLong("concert.hold.ttlSeconds", 300L);
+
+    /**
+     * The resolution of the timing wheel that expires seat holds.
+     */
+    public static final long HOLD_TICK_MILLIS = Long.getLong("concert.hold.tickMillis", 1000L);
+
+    /**
+     * The number of buckets in the timing wheel that expires seat holds.
+     */
+    public static final int HOLD_WHEEL_SIZE = Integer.getInteger("concert.hold.wheelSize", 512);
+
+    /**
+     * How auth cookies identify users. See {@link AuthMode}.
+     */
+    public static final AuthMode AUTH_MODE =
+            AuthMode.valueOf(System.getProperty("concert.auth.mode", "session").toUpperCase());
+
+    /**
+     * The keys that sign auth tokens, as comma separated <code>keyId:base64Key</code> pairs. New tokens are signed
+     * with the first key; tokens signed with any of them are accepted. If none are given, a random key is used, so
+     * tokens don't survive a restart.
+     */
+    public static final String AUTH_TOKEN_KEYS = System.getProperty("concert.auth.tokenKeys", "");
+
+    /**
+     * How long an auth token is valid for.
+     */
+    public static final long AUTH_TOKEN_TTL_SECONDS = Long.getLong("concert.auth.tokenTtlSeconds", 86400L);
+
+    /**
+     * The maximum number of sessions (auth cookies) whose user is cached.
+     */
+    public static final int SESSION_CACHE_SIZE = Integer.getInteger("concert.session.cacheSize", 100000);
+
+    /**
+     * How long a session's user is cached before being looked up again.
+     */
+    public static final long SESSION_TTL_SECONDS = Long.getLong("concert.session.ttlSeconds", 300L);
+
+    /**
+     * How long a session id that doesn't belong to any user is remembered as such.
+     */
+    public static final long SESSION_NEGATIVE_TTL_SECONDS = Long.getLong("concert.session.negativeTtlSeconds", 10L);
+
+    /**
+     * The maximum number of Idempotency-Key outcomes remembered for POST /bookings.
+     */
+    public static final int IDEMPOTENCY_MAX_KEYS = Integer.getInteger("concert.idempotency.maxKeys", 100000);
+
+    /**
+     * How long an Idempotency-Key outcome is remembered for.
+     */
+    public static final long IDEMPOTENCY_TTL_SECONDS = Long.getLong("concert.idempotency.ttlSeconds", 3600L);
+
+    /**
+     * The number of sessions per concert date that the waiting room lets use the booking endpoints at once. 0 turns
+     * the waiting room off.
+     */
+    public static final int WAITING_ROOM_MAX_ACTIVE = Integer.getInteger("concert.waitingroom.maxActive", 0);
+
+    /**
+     * The longest an admitted session may use the booking endpoints before its place is given to the next in line.
+     */
+    public static final long WAITING_ROOM_SESSION_SECONDS = Long.getLong("concert.waitingroom.sessionSeconds", 600L);
+
+    /**
+     * How often a waiting room token must be used (e.g. by polling its status) to keep its place.
+     */
+    public static final long WAITING_ROOM_IDLE_SECONDS = Long.getLong("concert.waitingroom.idleSeconds", 60L);
+
+    /**
+     * How long a concert info subscription waits for a notification before it is answered with
+     * {@link #SUBSCRIPTION_TIMEOUT_STATUS}. 0 means subscriptions wait indefinitely.
+     */
+    public static final long SUBSCRIPTION_TIMEOUT_SECONDS = Long.getLong("concert.subscription.timeoutSeconds", 300L);
+
+    /**
+     * The status a subscription that times out is answered with: 204 (No Content) or 408 (Request Timeout).
+     */
+    public static final int SUBSCRIPTION_TIMEOUT_STATUS = Integer.getInteger("concert.subscription.timeoutStatus", 204);
+
+    /**
+     * The maximum number of pending concert info subscriptions. Further subscriptions are answered with 503.
+     */
+    public static final int SUBSCRIPTION_MAX = Integer.getInteger("concert.subscription.max", 500000);
+
+    /**
+     * The maximum number of pending concert info subscriptions per user. Further subscriptions are answered with 429.
+     */
+    public static final int SUBSCRIPTION_MAX_PER_USER = Integer.getInteger("concert.subscription.maxPerUser", 100);
+
+    /**
+     * The number of seat changes kept per concert date for clients catching up with GET /seats/{date}?since=. Clients
+     * further behind are sent every unavailable seat instead.
+     */
+    public static final int SEAT_CHANGE_LOG_SIZE = Integer.getInteger("concert.seats.changeLogSize", 1024);
+
+    /**
+     * The number of threads that notify concert info subscribers.
+     */
+    public static final int NOTIFICATION_THREADS = Integer.getInteger("concert.notification.threads", 2);
+
+    /**
+     * The number of concert date changes that may wait to be dispatched to subscribers. Beyond this, the booking
+     * request that made the change dispatches it itself.
+     */
+    public static final int NOTIFICATION_QUEUE_SIZE = Integer.getInteger("concert.notification.queueSize", 10000);
+
+    public enum BookingEngine {
+        /**
+         * Seats are claimed by locking their rows in the database (SELECT ... FOR UPDATE).
+         */
+        LOCKING,
+        /**
+         * Seats are claimed with a compare-and-set on the in-memory seat bitmap, and bookings are persisted in
+         * batches by a background writer.
+         */
+        CAS,
+        /**
+         * Each concert date has a single thread that decides its bookings in arrival order, fed by a ring buffer.
+         * Bookings are persisted in batches by the same background writer as {@link #CAS}.
+         */
+        SEQUENCER
+    }
+
+    public enum AuthMode {
+        /**
+         * The auth cookie holds a random session id, which login stores against the user in the database.
+         */
+        SESSION,
+        /**
+         * The auth cookie holds a token signed by the service, naming the user and when it expires. Logging in writes
+         * nothing, and requests are authenticated without the database.
+         */
+        TOKEN
+    }
+
+    private ServiceConfig() {
+    }
+}
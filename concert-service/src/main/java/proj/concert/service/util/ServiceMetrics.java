@@ -0,0 +1,43 @@
+package proj.concert.service.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+/**
+ * Singleton registry of gauges describing the service's in-memory state, such as the number of pending subscriptions.
+ * Components register a gauge once, and its current value is read whenever the metrics are requested.
+ */
+public class ServiceMetrics {
+
+    private static final ServiceMetrics instance = new ServiceMetrics();
+
+    private final ConcurrentMap<String, Supplier<Number>> gauges = new ConcurrentSkipListMap<>();
+
+    protected ServiceMetrics() {
+    }
+
+    public static ServiceMetrics instance() {
+        return instance;
+    }
+
+    /**
+     * Registers a gauge, replacing any existing gauge with the same name.
+     */
+    public void gauge(String name, Supplier<Number> value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * @return the current value of every gauge, by name
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> values = new TreeMap<>();
+        for (Map.Entry<String, Supplier<Number>> gauge : gauges.entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().get());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,40 @@
+package proj.concert.service.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A Fenwick (binary indexed) tree of counts over a very large range of indices, which only stores its non-zero nodes.
+ * Both adding to a count and summing the counts below an index are O(log n) in the size of the range.
+ * <p>
+ * Nodes are updated atomically one at a time, without locks, so a sum taken while counts are being changed may be off
+ * by those changes; once they have been made, sums are exact. Nodes whose count returns to zero are dropped, so the
+ * tree's size follows the number of non-zero counts rather than the indices ever used.
+ */
+public class SparseFenwickTree {
+
+    // indices are below 2^40, far more than a counter can reach in the life of a process
+    private static final long SIZE = 1L << 40;
+
+    private final ConcurrentMap<Long, Long> nodes = new ConcurrentHashMap<>();
+
+    /**
+     * Adds delta to the count at the given index.
+     */
+    public void add(long index, long delta) {
+        for (long i = index + 1; i <= SIZE; i += i & -i) {
+            nodes.merge(i, delta, (count, d) -> count + d == 0 ? null : count + d);
+        }
+    }
+
+    /**
+     * @return the sum of the counts at indices below the given one
+     */
+    public long sumBelow(long index) {
+        long sum = 0;
+        for (long i = Math.min(index, SIZE); i > 0; i -= i & -i) {
+            sum += nodes.getOrDefault(i, 0L);
+        }
+        return sum;
+    }
+}
@@ -62,6 +62,63 @@ public class TheatreLayout {
 
     }
 
+    /**
+     * Maps a seat label (e.g. "C5") to its position in the theatre, counting row by row from seat A1 = 0.
+     *
+     * @param label the seat label
+     * @return the seat index, or -1 if the label does not name a seat in this theatre. Only the label
+     * {@link #seatLabel(int)} gives for a seat names it, so e.g. "A01" and "A+1" don't name seat A1.
+     */
+    public static int seatIndex(String label) {
+        if (label == null || label.length() < 2) {
+            return -1;
+        }
+        int row = label.charAt(0) - 'A';
+        int seatNum;
+        try {
+            seatNum = Integer.parseInt(label.substring(1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        if (row < 0 || row >= NUM_ROWS || seatNum < 1 || seatNum > NUM_SEATS_PER_ROW) {
+            return -1;
+        }
+        int seatIndex = row * NUM_SEATS_PER_ROW + (seatNum - 1);
+        // parseInt accepts other spellings of the number, which don't match the seats' labels in the database
+        return seatLabel(seatIndex).equals(label) ? seatIndex : -1;
+    }
+
+    /**
+     * The inverse of {@link #seatIndex(String)}.
+     */
+    public static String seatLabel(int seatIndex) {
+        char rowLabel = (char) ('A' + seatIndex / NUM_SEATS_PER_ROW);
+        return "" + rowLabel + (seatIndex % NUM_SEATS_PER_ROW + 1);
+    }
+
+    /**
+     * Returns the price band that the given row (0 = row A) belongs to, matching the bands assigned by
+     * {@link #createSeatsFor(LocalDateTime)}.
+     */
+    public static PriceBand priceBandForRow(int row) {
+        int firstRowOfBand = 0;
+        for (PriceBand band : PRICE_BANDS) {
+            if (row < firstRowOfBand + band.numRows) {
+                return band;
+            }
+            firstRowOfBand += band.numRows;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the price of the seat at the given index.
+     */
+    public static BigDecimal priceOf(int seatIndex) {
+        PriceBand band = priceBandForRow(seatIndex / NUM_SEATS_PER_ROW);
+        return band == null ? null : band.price;
+    }
+
     public static class PriceBand {
         public String name;
         public BigDecimal price;
@@ -0,0 +1,157 @@
+package proj.concert.service;
+
+import org.junit.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import proj.concert.common.dto.BookingRequestDTO;
+import proj.concert.common.dto.ConcertDTO;
+import proj.concert.common.dto.SeatDTO;
+import proj.concert.common.dto.UserDTO;
+import proj.concert.service.util.TheatreLayout;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.Response;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures booking throughput: many clients book single seats at once, spread over every concert date, and the rate at
+ * which bookings are made is logged. It only runs with the benchmark profile (<code>mvn verify -Pbenchmark</code>).
+ * Run it with <code>-Dconcert.db.pooled=false</code> as well to compare the HikariCP pool with Hibernate's built-in one,
+ * and with <code>-Dconcert.benchmark.threads</code> and <code>-Dconcert.benchmark.bookings</code> to change the load.
+ */
+public class BookingThroughputIT {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(BookingThroughputIT.class);
+
+    private static final String WEB_SERVICE_URI = "http://localhost:10000/services/concert-service";
+
+    private static final int THREADS = Integer.getInteger("concert.benchmark.threads", 16);
+    private static final int BOOKINGS = Integer.getInteger("concert.benchmark.bookings", 480);
+
+    private Client client;
+
+    /**
+     * Ensures the DB is in the same state before running each test.
+     */
+    @Before
+    public void setUp() {
+
+        client = ClientBuilder.newClient();
+
+        Response response = client
+                .target(WEB_SERVICE_URI + "-test/reset")
+                .request().get();
+
+        assertEquals(Response.Status.NO_CONTENT.getStatusCode(), response.getStatus());
+    }
+
+    /**
+     * Kills the client after every test, to get rid of any leftover cookies.
+     */
+    @After
+    public void tearDown() {
+        client.close();
+        client = null;
+    }
+
+    /**
+     * Books seats from many clients at once, and checks that every booking was made exactly once.
+     */
+    @Test
+    public void testBookingThroughput() throws Exception {
+        // every (concert, date), so that each booking can have a seat of its own
+        List<BookingRequestDTO> dates = new ArrayList<>();
+        for (ConcertDTO concert : client.target(WEB_SERVICE_URI + "/concerts").request()
+                .get(new GenericType<List<ConcertDTO>>() {
+                })) {
+            for (LocalDateTime date : concert.getDates()) {
+                dates.add(new BookingRequestDTO(concert.getId(), date, Collections.emptyList()));
+            }
+        }
+        int numBookings = Math.min(BOOKINGS, dates.size() * TheatreLayout.NUM_SEATS_IN_THEATRE);
+
+        // logging in again would end the user's earlier session, so each user logs in once and shares their cookie
+        List<Cookie> authCookies = new ArrayList<>();
+        for (String username : new String[]{"testuser", "testuser2"}) {
+            authCookies.add(client.target(WEB_SERVICE_URI + "/login").request()
+                    .post(Entity.json(new UserDTO(username, "pa55word"))).getCookies().get("auth").toCookie());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        AtomicInteger nextBooking = new AtomicInteger();
+        List<Future<Integer>> threads = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < THREADS; i++) {
+                Cookie authCookie = authCookies.get(i % authCookies.size());
+                threads.add(executor.submit(() -> {
+                    Client threadClient = ClientBuilder.newClient();
+                    try {
+                        int numMade = 0;
+                        for (int booking = nextBooking.getAndIncrement(); booking < numBookings;
+                             booking = nextBooking.getAndIncrement()) {
+                            BookingRequestDTO date = dates.get(booking % dates.size());
+                            String seatLabel = TheatreLayout.seatLabel(booking / dates.size());
+
+                            Response response = threadClient.target(WEB_SERVICE_URI + "/bookings").request().cookie(authCookie).post(
+                                    Entity.json(new BookingRequestDTO(date.getConcertId(), date.getDate(),
+                                            Collections.singletonList(seatLabel))));
+                            assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+                            response.close();
+                            numMade++;
+                        }
+                        return numMade;
+                    } finally {
+                        threadClient.close();
+                    }
+                }));
+            }
+
+            int numMade = 0;
+            for (Future<Integer> thread : threads) {
+                numMade += thread.get();
+            }
+            long elapsedMillis = Math.max(1, (System.nanoTime() - start) / 1000000);
+            assertEquals(numBookings, numMade);
+
+            LOGGER.info(String.format("Made %d bookings in %d ms from %d clients (%.0f bookings/s)",
+                    numMade, elapsedMillis, THREADS, numMade * 1000.0 / elapsedMillis));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // every seat was booked exactly once
+        int numBooked = 0;
+        for (BookingRequestDTO date : dates) {
+            numBooked += client.target(WEB_SERVICE_URI + "/seats/" + date.getDate() + "?status=Booked").request()
+                    .get(new GenericType<List<SeatDTO>>() {
+                    }).size();
+        }
+        assertEquals(numBookings, numBooked);
+
+        // the service only reports the connection pool when it has one
+        Map<String, Number> metrics = client.target(WEB_SERVICE_URI + "-metrics").request()
+                .get(new GenericType<Map<String, Number>>() {
+                });
+        boolean pooled = metrics.containsKey("db.pool.total");
+        LOGGER.info("Pooled connections: " + pooled);
+        if (pooled) {
+            assertEquals(0, metrics.get("db.pool.timeouts").longValue());
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package proj.concert.service;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.*;
 
 import proj.concert.common.dto.*;
@@ -10,24 +12,41 @@ import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import static org.junit.Assert.*;
 
 public class ConcertResourceIT {
 
     private static final String WEB_SERVICE_URI = "http://localhost:10000/services/concert-service";
+    private static final String METRICS_URI = "http://localhost:10000/services/concert-service-metrics";
+    // whether the service is running with signed auth tokens rather than sessions
+    private static final boolean TOKEN_AUTH = "token".equalsIgnoreCase(System.getProperty("concert.auth.mode"));
+    // whether the service is running with the waiting room turned on
+    private static final boolean WAITING_ROOM = Integer.getInteger("concert.waitingroom.maxActive", 0) > 0;
     private Client client;
 
     /**
@@ -145,6 +164,113 @@ public class ConcertResourceIT {
 
     }
 
+    /**
+     * Tests that the concerts can be paged through in order of id, following each page's next link until there are
+     * no more.
+     */
+    @Test
+    public void testGetConcertsPaged() {
+
+        List<ConcertDTO> concerts = new ArrayList<>();
+        URI page = URI.create(WEB_SERVICE_URI + "/concerts?limit=3");
+        int numPages = 0;
+        while (page != null) {
+            Response response = client.target(page).request().get();
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+            List<ConcertDTO> pageConcerts = response.readEntity(new GenericType<List<ConcertDTO>>() {
+            });
+            assertTrue(pageConcerts.size() <= 3);
+            concerts.addAll(pageConcerts);
+            page = response.getLink("next") == null ? null : response.getLink("next").getUri();
+            numPages++;
+        }
+
+        assertEquals(3, numPages);
+        assertEquals(8, concerts.size());
+        for (int i = 1; i < concerts.size(); i++) {
+            assertTrue(concerts.get(i - 1).getId() < concerts.get(i).getId());
+        }
+    }
+
+    /**
+     * Tests that a client can revalidate its copy of the concerts with the ETag it was given. While the catalog is
+     * unchanged, a request with a matching If-None-Match header should return a 304 response with no body.
+     */
+    @Test
+    public void testGetAllConcertsNotModified() {
+
+        Response response = client.target(WEB_SERVICE_URI + "/concerts").request().get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertNotNull(response.getEntityTag());
+        assertNotNull(response.getHeaderString("Cache-Control"));
+        String eTag = response.getHeaderString("ETag");
+        response.close();
+
+        response = client.target(WEB_SERVICE_URI + "/concerts").request().header("If-None-Match", eTag).get();
+        assertEquals(Response.Status.NOT_MODIFIED.getStatusCode(), response.getStatus());
+        assertFalse(response.hasEntity());
+        response.close();
+
+        // A stale tag gets the concerts again
+        response = client.target(WEB_SERVICE_URI + "/concerts").request().header("If-None-Match", "\"stale\"").get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertEquals(8, response.readEntity(new GenericType<List<ConcertDTO>>() {
+        }).size());
+    }
+
+    /**
+     * Tests that a client which accepts gzip gets the concerts gzip-encoded, with a different ETag to the unencoded
+     * concerts.
+     */
+    @Test
+    public void testGetAllConcertsGzipped() throws IOException {
+
+        Response response = client.target(WEB_SERVICE_URI + "/concerts").request().get();
+        EntityTag identityTag = response.getEntityTag();
+        response.close();
+
+        response = client.target(WEB_SERVICE_URI + "/concerts").request().header("Accept-Encoding", "gzip").get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertEquals("gzip", response.getHeaderString("Content-Encoding"));
+        assertNotEquals(identityTag, response.getEntityTag());
+
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(response.readEntity(byte[].class)))) {
+            List<ConcertDTO> concerts = new ObjectMapper().readValue(in, new TypeReference<List<ConcertDTO>>() {
+            });
+            assertEquals(8, concerts.size());
+        }
+    }
+
+    /**
+     * Tests that a client can revalidate a compressed catalog response with the ETag it was given, whether the catalog
+     * was pre-compressed with gzip, or compressed on the way out with deflate (as are pages of the catalog).
+     */
+    @Test
+    public void testRevalidateCompressedConcerts() {
+        String[][] requests = {
+                {"/concerts", "gzip"},
+                {"/concerts", "deflate"},
+                {"/concerts?limit=8", "gzip"},
+                {"/concerts?limit=8", "deflate"}};
+
+        for (String[] request : requests) {
+            Response response = client.target(WEB_SERVICE_URI + request[0]).request()
+                    .header("Accept-Encoding", request[1]).get();
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+            assertEquals(request[1], response.getHeaderString("Content-Encoding"));
+            assertFalse(response.getEntityTag().isWeak());
+            String eTag = response.getHeaderString("ETag");
+            response.close();
+
+            response = client.target(WEB_SERVICE_URI + request[0]).request()
+                    .header("Accept-Encoding", request[1]).header("If-None-Match", eTag).get();
+            assertEquals(request[0] + " " + request[1],
+                    Response.Status.NOT_MODIFIED.getStatusCode(), response.getStatus());
+            assertFalse(response.hasEntity());
+            response.close();
+        }
+    }
+
     /**
      * Tests that all concert summaries are returned when requested. Concert summaries contain only the id, title, and
      * image name for each concert.
@@ -268,6 +394,65 @@ public class ConcertResourceIT {
         assertFalse(authCookie.getValue().isEmpty());
     }
 
+    /**
+     * Tests that logging in again ends the previous session, even once that session has been used (and so cached), and
+     * that an unknown session is remembered as such.
+     */
+    @Test
+    public void testLoginEndsPreviousSession() {
+        // tokens are stateless, so logging in again doesn't end the earlier ones
+        Assume.assumeFalse(TOKEN_AUTH);
+
+        Client sessionClient = ClientBuilder.newClient();
+        try {
+            Cookie oldCookie = login(client, "testuser", "pa55word").getCookies().get("auth").toCookie();
+            assertEquals(Response.Status.OK.getStatusCode(), sessionClient.target(WEB_SERVICE_URI + "/bookings")
+                    .request().cookie(oldCookie).get().getStatus());
+
+            Cookie newCookie = login(client, "testuser", "pa55word").getCookies().get("auth").toCookie();
+            assertEquals(Response.Status.UNAUTHORIZED.getStatusCode(), sessionClient.target(WEB_SERVICE_URI + "/bookings")
+                    .request().cookie(oldCookie).get().getStatus());
+            assertEquals(Response.Status.OK.getStatusCode(), sessionClient.target(WEB_SERVICE_URI + "/bookings")
+                    .request().cookie(newCookie).get().getStatus());
+
+            // the second attempt with an unknown session is refused without asking the database
+            Cookie unknownCookie = new Cookie("auth", UUID.randomUUID().toString());
+            assertEquals(Response.Status.UNAUTHORIZED.getStatusCode(), sessionClient.target(WEB_SERVICE_URI + "/bookings")
+                    .request().cookie(unknownCookie).get().getStatus());
+            long before = statementCount();
+            assertEquals(Response.Status.UNAUTHORIZED.getStatusCode(), sessionClient.target(WEB_SERVICE_URI + "/bookings")
+                    .request().cookie(unknownCookie).get().getStatus());
+            assertEquals(before, statementCount());
+        } finally {
+            sessionClient.close();
+        }
+    }
+
+    /**
+     * Tests that logging out ends the user's session, so their auth cookie is refused from then on.
+     */
+    @Test
+    public void testLogout() {
+        Client sessionClient = ClientBuilder.newClient();
+        try {
+            Cookie authCookie = login(client, "testuser", "pa55word").getCookies().get("auth").toCookie();
+            assertEquals(Response.Status.OK.getStatusCode(), sessionClient.target(WEB_SERVICE_URI + "/bookings")
+                    .request().cookie(authCookie).get().getStatus());
+
+            Response response = sessionClient.target(WEB_SERVICE_URI + "/logout")
+                    .request().cookie(authCookie).post(null);
+            assertEquals(Response.Status.NO_CONTENT.getStatusCode(), response.getStatus());
+            assertEquals(0, response.getCookies().get("auth").getMaxAge());
+
+            assertEquals(Response.Status.UNAUTHORIZED.getStatusCode(), sessionClient.target(WEB_SERVICE_URI + "/bookings")
+                    .request().cookie(authCookie).get().getStatus());
+            assertEquals(Response.Status.UNAUTHORIZED.getStatusCode(), sessionClient.target(WEB_SERVICE_URI + "/logout")
+                    .request().cookie(authCookie).post(null).getStatus());
+        } finally {
+            sessionClient.close();
+        }
+    }
+
     /**
      * Tests that a 401 error is returned when attempting to book while not logged in, and that no booking is actually
      * made.
@@ -440,6 +625,34 @@ public class ConcertResourceIT {
         }
     }
 
+    /**
+     * Tests that a user's bookings can be paged through, following each page's next link until there are no more.
+     */
+    @Test
+    public void testGetBookingsPaged() {
+
+        login(client, "testuser", "pa55word");
+        attemptBooking(client, 1, LocalDateTime.of(2020, 2, 15, 20, 0, 0), "C5", "C6");
+        attemptBooking(client, 2, LocalDateTime.of(2019, 9, 14, 20, 0, 0), "A1", "A2");
+        attemptBooking(client, 3, LocalDateTime.of(2020, 1, 23, 20, 0, 0), "C7", "C8");
+
+        Response response = client.target(WEB_SERVICE_URI + "/bookings?limit=2").request().get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertEquals(2, response.readEntity(new GenericType<List<BookingDTO>>() {
+        }).size());
+        assertNotNull(response.getLink("next"));
+
+        response = client.target(response.getLink("next")).request().get();
+        List<BookingDTO> lastPage = response.readEntity(new GenericType<List<BookingDTO>>() {
+        });
+        assertEquals(1, lastPage.size());
+        assertEquals(LocalDateTime.of(2020, 1, 23, 20, 0, 0), lastPage.get(0).getDate());
+        assertNull(response.getLink("next"));
+
+        response = client.target(WEB_SERVICE_URI + "/bookings?limit=0").request().get();
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+    }
+
     /**
      * Tests that a 401 error is returned when trying to access any booking information while not authenticated.
      */
@@ -464,6 +677,26 @@ public class ConcertResourceIT {
         assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
     }
 
+    /**
+     * Tests that a 400 error is returned when a seat label only resembles a seat's label (e.g. "A01" for "A1"), and
+     * that the seat it resembles can still be booked.
+     */
+    @Test
+    public void testAttemptBookingMisspelledSeats() {
+        login(client, "testuser", "pa55word");
+        LocalDateTime date = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), attemptBooking(client, 1, date, "A01").getStatus());
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), attemptBooking(client, 1, date, "A+1").getStatus());
+
+        assertEquals(Response.Status.CREATED.getStatusCode(), attemptBooking(client, 1, date, "A1").getStatus());
+        List<SeatDTO> bookedSeats = client.target(WEB_SERVICE_URI + "/seats/2020-02-15T20:00:00?status=Booked")
+                .request().get(new GenericType<List<SeatDTO>>() {
+                });
+        assertEquals(1, bookedSeats.size());
+        assertEquals("A1", bookedSeats.get(0).getLabel());
+    }
+
     /**
      * Tests that a 400 error is returned when trying to book seats for a nonexistent concert.
      */
@@ -634,6 +867,43 @@ public class ConcertResourceIT {
         }
     }
 
+    /**
+     * Tests that a client that has already read the seats for a date can ask for only the seats that have changed
+     * since, and is told when nothing has changed.
+     */
+    @Test
+    public void testGetSeatChangesSinceVersion() {
+        // Log in
+        login(client, "testuser", "pa55word");
+
+        // Read the seats, and remember their version
+        Response response = client.target(WEB_SERVICE_URI + "/seats/2020-02-15T20:00:00?status=Booked").request().get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        long version = Long.parseLong(response.getHeaderString("Seat-Map-Version"));
+        response.close();
+
+        // Nothing has changed yet
+        response = client.target(WEB_SERVICE_URI + "/seats/2020-02-15T20:00:00?since=" + version).request().get();
+        assertEquals(Response.Status.NOT_MODIFIED.getStatusCode(), response.getStatus());
+        response.close();
+
+        // Book some seats - only they should be reported as changed
+        attemptBooking(client, 1, LocalDateTime.of(2020, 2, 15, 20, 0, 0), "C5", "C6").close();
+
+        SeatChangesDTO changes = client.target(WEB_SERVICE_URI + "/seats/2020-02-15T20:00:00?since=" + version)
+                .request().get(SeatChangesDTO.class);
+        assertFalse(changes.isFull());
+        assertTrue(changes.getVersion() > version);
+        assertEquals(Arrays.asList("C5", "C6"), changes.getBookedSeats());
+        assertTrue(changes.getReleasedSeats().isEmpty());
+
+        // A version from the future gets the full seat map
+        changes = client.target(WEB_SERVICE_URI + "/seats/2020-02-15T20:00:00?since=" + (changes.getVersion() + 100))
+                .request().get(SeatChangesDTO.class);
+        assertTrue(changes.isFull());
+        assertEquals(Arrays.asList("C5", "C6"), changes.getBookedSeats());
+    }
+
     /**
      * Tests that all seats for a particular concert on a particular date can be queried.
      */
@@ -662,6 +932,322 @@ public class ConcertResourceIT {
         }
     }
 
+    /**
+     * Tests that each read endpoint runs only the SQL statements its fetch plan calls for. Catalog and seat reads are
+     * answered from memory, and booking reads fetch what they show in a fixed number of statements, however many
+     * seats are booked.
+     */
+    @Test
+    public void testStatementCounts() {
+
+        login(client, "testuser", "pa55word");
+        URI booking = attemptBooking(client, 1, LocalDateTime.of(2020, 2, 15, 20, 0, 0), "C5", "C6").getLocation();
+        attemptBooking(client, 4, LocalDateTime.of(2019, 9, 6, 20, 0, 0), "A1", "A2", "A3");
+
+        assertEquals(0, statementsFor(URI.create(WEB_SERVICE_URI + "/concerts/4")));
+        assertEquals(0, statementsFor(URI.create(WEB_SERVICE_URI + "/concerts")));
+        assertEquals(0, statementsFor(URI.create(WEB_SERVICE_URI + "/concerts/summaries")));
+        assertEquals(0, statementsFor(URI.create(WEB_SERVICE_URI + "/performers")));
+        assertEquals(0, statementsFor(URI.create(WEB_SERVICE_URI + "/seats/2020-02-15T20:00:00?status=Booked")));
+
+        // the user's session was cached when they logged in, so just their bookings, then all of the bookings' seats
+        assertEquals(2, statementsFor(URI.create(WEB_SERVICE_URI + "/bookings")));
+        // the booking with its seats
+        assertEquals(1, statementsFor(booking));
+    }
+
+    /**
+     * Tests that large responses are compressed with whichever of gzip and deflate the client accepts, and that small
+     * responses are sent as they are.
+     */
+    @Test
+    public void testCompressedResponses() throws IOException {
+
+        // All 120 seats are well over the compression threshold
+        Response response = client.target(WEB_SERVICE_URI + "/seats/2020-02-15T20:00:00?status=Any")
+                .request().header("Accept-Encoding", "gzip, deflate").get();
+        assertEquals("gzip", response.getHeaderString("Content-Encoding"));
+        assertTrue(response.getHeaderString("Vary").contains("Accept-Encoding"));
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(response.readEntity(byte[].class)))) {
+            assertEquals(120, new ObjectMapper().readValue(in, new TypeReference<List<SeatDTO>>() {
+            }).size());
+        }
+
+        response = client.target(WEB_SERVICE_URI + "/seats/2020-02-15T20:00:00?status=Any")
+                .request().header("Accept-Encoding", "deflate, gzip;q=0").get();
+        assertEquals("deflate", response.getHeaderString("Content-Encoding"));
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(response.readEntity(byte[].class)))) {
+            assertEquals(120, new ObjectMapper().readValue(in, new TypeReference<List<SeatDTO>>() {
+            }).size());
+        }
+
+        // No seats are booked yet, so the list is tiny
+        response = client.target(WEB_SERVICE_URI + "/seats/2020-02-15T20:00:00?status=Booked")
+                .request().header("Accept-Encoding", "gzip, deflate").get();
+        assertNull(response.getHeaderString("Content-Encoding"));
+        assertTrue(response.getHeaderString("Vary").contains("Accept-Encoding"));
+        assertEquals(0, response.readEntity(new GenericType<List<SeatDTO>>() {
+        }).size());
+    }
+
+    /**
+     * Tests that retrying a booking with the same Idempotency-Key returns the original booking, rather than a 403 for
+     * trying to book the same seats twice.
+     */
+    @Test
+    public void testRetryBookingWithIdempotencyKey() {
+        login(client, "testuser", "pa55word");
+
+        BookingRequestDTO bReq = new BookingRequestDTO(1, LocalDateTime.of(2020, 2, 15, 20, 0, 0), Arrays.asList("C5", "C6"));
+        Response response = client.target(WEB_SERVICE_URI + "/bookings").request()
+                .header("Idempotency-Key", "retry-test").post(Entity.json(bReq));
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+
+        Response retry = client.target(WEB_SERVICE_URI + "/bookings").request()
+                .header("Idempotency-Key", "retry-test").post(Entity.json(bReq));
+        assertEquals(Response.Status.CREATED.getStatusCode(), retry.getStatus());
+        assertEquals(response.getLocation(), retry.getLocation());
+
+        // Without the key, it's a second attempt at the same seats.
+        assertEquals(Response.Status.FORBIDDEN.getStatusCode(),
+                client.target(WEB_SERVICE_URI + "/bookings").request().post(Entity.json(bReq)).getStatus());
+
+        List<BookingDTO> bookings = client.target(WEB_SERVICE_URI + "/bookings")
+                .request().get(new GenericType<List<BookingDTO>>() {
+                });
+        assertEquals(1, bookings.size());
+    }
+
+    /**
+     * Tests that a batch of booking requests gets one result per request, in order, and that requests in the batch
+     * can't double-book each other's seats.
+     */
+    @Test
+    public void testMakeBatchBooking() {
+        login(client, "testuser", "pa55word");
+
+        LocalDateTime date = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+        List<BookingRequestDTO> requests = Arrays.asList(
+                new BookingRequestDTO(1, date, Arrays.asList("C5", "C6")),
+                new BookingRequestDTO(1, LocalDateTime.of(2030, 2, 15, 20, 0, 0), Arrays.asList("C5")),
+                new BookingRequestDTO(1, date, Arrays.asList("C6", "C7")),
+                new BookingRequestDTO(1, date, Arrays.asList("D1")));
+
+        List<BookingResultDTO> results = client.target(WEB_SERVICE_URI + "/bookings/batch")
+                .request().post(Entity.json(requests), new GenericType<List<BookingResultDTO>>() {
+                });
+
+        assertEquals(4, results.size());
+        assertEquals(Response.Status.CREATED.getStatusCode(), results.get(0).getStatus());
+        assertNotNull(results.get(0).getLocation());
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), results.get(1).getStatus());
+        assertEquals(Response.Status.FORBIDDEN.getStatusCode(), results.get(2).getStatus());
+        assertNull(results.get(2).getLocation());
+        assertEquals(Response.Status.CREATED.getStatusCode(), results.get(3).getStatus());
+
+        List<SeatDTO> bookedSeats = client.target(WEB_SERVICE_URI + "/seats/2020-02-15T20:00:00?status=Booked")
+                .request().get(new GenericType<List<SeatDTO>>() {
+                });
+        assertEquals(3, bookedSeats.size());
+
+        List<BookingDTO> bookings = client.target(WEB_SERVICE_URI + "/bookings")
+                .request().get(new GenericType<List<BookingDTO>>() {
+                });
+        assertEquals(2, bookings.size());
+    }
+
+    /**
+     * Tests that batch and single bookings of the same seats, made at the same time by two users, never book a seat
+     * twice: each pair of seats is booked by exactly one request.
+     */
+    @Test
+    public void testConcurrentBatchAndSingleBookings() throws InterruptedException, ExecutionException, TimeoutException {
+        LocalDateTime date = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+        login(client, "testuser", "pa55word");
+        Client user2Client = ClientBuilder.newClient();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            login(user2Client, "testuser2", "pa55word");
+
+            int numBooked = 0;
+            for (char row = 'A'; row <= 'H'; row++) {
+                List<BookingRequestDTO> pairs = new ArrayList<>();
+                for (int num = 1; num <= 12; num += 2) {
+                    pairs.add(new BookingRequestDTO(1, date, Arrays.asList("" + row + num, "" + row + (num + 1))));
+                }
+
+                CountDownLatch start = new CountDownLatch(1);
+                Future<List<BookingResultDTO>> batch = executor.submit(() -> {
+                    start.await();
+                    return client.target(WEB_SERVICE_URI + "/bookings/batch")
+                            .request().post(Entity.json(pairs), new GenericType<List<BookingResultDTO>>() {
+                            });
+                });
+                Future<List<Integer>> singles = executor.submit(() -> {
+                    start.await();
+                    List<Integer> statuses = new ArrayList<>();
+                    for (BookingRequestDTO pair : pairs) {
+                        Response response = user2Client.target(WEB_SERVICE_URI + "/bookings").request().post(Entity.json(pair));
+                        statuses.add(response.getStatus());
+                        response.close();
+                    }
+                    return statuses;
+                });
+                start.countDown();
+
+                List<BookingResultDTO> batchResults = batch.get(30, TimeUnit.SECONDS);
+                List<Integer> singleStatuses = singles.get(30, TimeUnit.SECONDS);
+                for (int i = 0; i < pairs.size(); i++) {
+                    boolean bookedInBatch = batchResults.get(i).getStatus() == Response.Status.CREATED.getStatusCode();
+                    boolean bookedSingly = singleStatuses.get(i) == Response.Status.CREATED.getStatusCode();
+                    assertTrue(bookedInBatch != bookedSingly);
+                    numBooked++;
+                }
+            }
+
+            List<SeatDTO> bookedSeats = client.target(WEB_SERVICE_URI + "/seats/2020-02-15T20:00:00?status=Booked")
+                    .request().get(new GenericType<List<SeatDTO>>() {
+                    });
+            assertEquals(numBooked * 2, bookedSeats.size());
+        } finally {
+            executor.shutdownNow();
+            user2Client.close();
+        }
+    }
+
+    /**
+     * Tests that a best available booking in a batch is rejected with a 400, rather than made with no seats, and that
+     * the rest of the batch is still made.
+     */
+    @Test
+    public void testAttemptBatchBestAvailableBooking() {
+        login(client, "testuser", "pa55word");
+
+        LocalDateTime date = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+        BookingRequestDTO bestAvailable = new BookingRequestDTO(1, date);
+        bestAvailable.setNumSeats(2);
+        bestAvailable.setPriceBand("Gold");
+        List<BookingRequestDTO> requests = Arrays.asList(
+                bestAvailable,
+                new BookingRequestDTO(1, date, Arrays.asList("D1")));
+
+        List<BookingResultDTO> results = client.target(WEB_SERVICE_URI + "/bookings/batch")
+                .request().post(Entity.json(requests), new GenericType<List<BookingResultDTO>>() {
+                });
+
+        assertEquals(2, results.size());
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), results.get(0).getStatus());
+        assertNull(results.get(0).getLocation());
+        assertEquals(Response.Status.CREATED.getStatusCode(), results.get(1).getStatus());
+
+        List<BookingDTO> bookings = client.target(WEB_SERVICE_URI + "/bookings")
+                .request().get(new GenericType<List<BookingDTO>>() {
+                });
+        assertEquals(1, bookings.size());
+        assertEquals(1, bookings.get(0).getSeats().size());
+    }
+
+    /**
+     * Tests that, when no seats are named, a block of adjacent seats is booked from the requested price band, skipping
+     * over seats that are already booked.
+     */
+    @Test
+    public void testMakeBestAvailableBooking() {
+        login(client, "testuser", "pa55word");
+
+        LocalDateTime date = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+        assertEquals(Response.Status.CREATED.getStatusCode(), attemptBooking(client, 1, date, "F3").getStatus());
+
+        BookingRequestDTO bReq = new BookingRequestDTO(1, date);
+        bReq.setNumSeats(4);
+        bReq.setPriceBand("Gold");
+        Response response = client.target(WEB_SERVICE_URI + "/bookings").request().post(Entity.json(bReq));
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+
+        BookingDTO booking = client.target(response.getLocation()).request().get(BookingDTO.class);
+        List<String> labels = booking.getSeats().stream().map(SeatDTO::getLabel).sorted().collect(Collectors.toList());
+        assertEquals(Arrays.asList("F4", "F5", "F6", "F7"), labels);
+
+        // No row is long enough for this many adjacent seats.
+        bReq.setNumSeats(13);
+        response = client.target(WEB_SERVICE_URI + "/bookings").request().post(Entity.json(bReq));
+        assertEquals(Response.Status.FORBIDDEN.getStatusCode(), response.getStatus());
+    }
+
+    /**
+     * Tests that seats held by one user are reported as booked, and can't be booked by anyone else, but can still be
+     * booked by the holder.
+     */
+    @Test
+    public void testHoldSeats() {
+        LocalDateTime date = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+
+        // Log in and hold some seats
+        login(client, "testuser", "pa55word");
+        Response response = attemptHold(client, 1, date, "C5", "C6");
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        SeatHoldDTO hold = response.readEntity(SeatHoldDTO.class);
+        assertEquals(2, hold.getSeatLabels().size());
+
+        // Held seats should show up as unavailable
+        List<SeatDTO> bookedSeats = client.target(WEB_SERVICE_URI + "/seats/2020-02-15T20:00:00?status=Booked")
+                .request().get(new GenericType<List<SeatDTO>>() {
+                });
+        assertEquals(2, bookedSeats.size());
+
+        Client user2Client = ClientBuilder.newClient();
+        try {
+            // User 2 can neither hold nor book the held seats
+            login(user2Client, "testuser2", "pa55word");
+            assertEquals(Response.Status.FORBIDDEN.getStatusCode(), attemptHold(user2Client, 1, date, "C6", "C7").getStatus());
+            assertEquals(Response.Status.FORBIDDEN.getStatusCode(), attemptBooking(user2Client, 1, date, "C6").getStatus());
+        } finally {
+            user2Client.close();
+        }
+
+        // The holder can book them
+        response = attemptBooking(client, 1, date, "C5", "C6");
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+    }
+
+    /**
+     * Tests that releasing a hold makes its seats available again, and that only the holder may release it.
+     */
+    @Test
+    public void testReleaseHold() {
+        LocalDateTime date = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+
+        login(client, "testuser", "pa55word");
+        Response response = attemptHold(client, 1, date, "C5", "C6");
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        URI holdUri = response.getLocation();
+
+        Client user2Client = ClientBuilder.newClient();
+        try {
+            login(user2Client, "testuser2", "pa55word");
+            assertEquals(Response.Status.FORBIDDEN.getStatusCode(), user2Client.target(holdUri).request().delete().getStatus());
+
+            assertEquals(Response.Status.NO_CONTENT.getStatusCode(), client.target(holdUri).request().delete().getStatus());
+            assertEquals(Response.Status.NOT_FOUND.getStatusCode(), client.target(holdUri).request().delete().getStatus());
+
+            // Now user 2 can book the seats
+            assertEquals(Response.Status.CREATED.getStatusCode(), attemptBooking(user2Client, 1, date, "C5", "C6").getStatus());
+        } finally {
+            user2Client.close();
+        }
+    }
+
+    /**
+     * Tests that the waiting room can't be joined while it is turned off.
+     */
+    @Test
+    public void testAttemptJoinDisabledWaitingRoom() {
+        Assume.assumeFalse(WAITING_ROOM);
+
+        Response response = client.target(WEB_SERVICE_URI + "/waiting-room/2020-02-15T20:00:00").request().post(null);
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+    }
+
     // Tests for publish / subscribe functions - uncomment when ready.
     // --------------------------------------------------------------------
 
@@ -814,6 +1400,23 @@ public class ConcertResourceIT {
                 .request().post(Entity.json(creds));
     }
 
+    /**
+     * @return the number of SQL statements the service ran to answer a GET request to the given URI
+     */
+    private long statementsFor(URI uri) {
+        long before = statementCount();
+        Response response = client.target(uri).request().get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        response.close();
+        return statementCount() - before;
+    }
+
+    private long statementCount() {
+        Map<String, Number> metrics = client.target(METRICS_URI).request().get(new GenericType<Map<String, Number>>() {
+        });
+        return metrics.get("hibernate.statements").longValue();
+    }
+
     /**
      * Helper method - tries to book entire rows.
      */
@@ -827,6 +1430,16 @@ public class ConcertResourceIT {
         return attemptBooking(client, concertId, date, toBook.toArray(new String[0]));
     }
 
+    /**
+     * Attempts to hold seats with the given details, and returns the server's response. Should already be logged in.
+     */
+    private static Response attemptHold(Client client, long concertId, LocalDateTime date, String... seatLabels) {
+
+        BookingRequestDTO hReq = new BookingRequestDTO(concertId, date, Arrays.asList(seatLabels));
+
+        return client.target(WEB_SERVICE_URI + "/holds").request().post(Entity.json(hReq));
+    }
+
     /**
      * Attempts a booking with the given details, and returns the server's response. Should already be logged in.
      */
@@ -1,5 +1,6 @@
 package proj.concert.service;
 
+import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
 import org.junit.*;
 
 import proj.concert.common.dto.*;
@@ -11,14 +12,20 @@ import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.core.Cookie;
 import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.sse.InboundSseEvent;
+import javax.ws.rs.sse.SseEventSource;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
@@ -194,6 +201,111 @@ public class ConcertSubscriptionIT {
 
     }
 
+    /**
+     * Tests that a subscription that isn't notified in time is answered with a 204, and leaves the registry. The
+     * integration test server times subscriptions out after 5 seconds (see pom.xml).
+     */
+    @Test
+    public void testSubscriptionTimeout() throws InterruptedException, ExecutionException, TimeoutException {
+        awaitNumSubscriptions(0);
+        login(client, "testuser", "pa55word");
+
+        // no booking is made, so the threshold isn't reached
+        LocalDateTime date = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+        ConcertInfoSubscriptionDTO subInfo = new ConcertInfoSubscriptionDTO(1, date, 50);
+        Future<Response> future = client.target(WEB_SERVICE_URI + "/subscribe/concertInfo")
+                .request().async().post(Entity.json(subInfo));
+        awaitNumSubscriptions(1);
+
+        Response response = future.get(15, TimeUnit.SECONDS);
+        assertEquals(Response.Status.NO_CONTENT.getStatusCode(), response.getStatus());
+        awaitNumSubscriptions(0);
+    }
+
+    /**
+     * Tests that a user's subscriptions beyond the per-user maximum (3 on the integration test server) are answered
+     * with a 429, while another user can still subscribe.
+     */
+    @Test
+    public void testSubscriptionLimitPerUser() throws InterruptedException, ExecutionException, TimeoutException {
+        awaitNumSubscriptions(0);
+        Client user1Client = pooledClient();
+        Client user2Client = pooledClient();
+        try {
+            login(user1Client, "testuser", "pa55word");
+            login(user2Client, "testuser2", "pa55word");
+            List<Future<Response>> pending = subscribe(user1Client, 3);
+            awaitNumSubscriptions(3);
+
+            Response response = subscribe(user1Client, 1).get(0).get(1, TimeUnit.SECONDS);
+            assertEquals(Response.Status.TOO_MANY_REQUESTS.getStatusCode(), response.getStatus());
+
+            pending.addAll(subscribe(user2Client, 1));
+            awaitNumSubscriptions(4);
+
+            notifySubscriptions(user2Client, pending);
+        } finally {
+            user1Client.close();
+            user2Client.close();
+        }
+    }
+
+    /**
+     * Tests that subscriptions beyond the overall maximum (5 on the integration test server) are answered with a 503,
+     * even for a user under their own maximum.
+     */
+    @Test
+    public void testSubscriptionLimit() throws InterruptedException, ExecutionException, TimeoutException {
+        awaitNumSubscriptions(0);
+        Client user1Client = pooledClient();
+        Client user2Client = pooledClient();
+        try {
+            login(user1Client, "testuser", "pa55word");
+            login(user2Client, "testuser2", "pa55word");
+            List<Future<Response>> pending = subscribe(user1Client, 3);
+            pending.addAll(subscribe(user2Client, 2));
+            awaitNumSubscriptions(5);
+
+            Response response = subscribe(user2Client, 1).get(0).get(1, TimeUnit.SECONDS);
+            assertEquals(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), response.getStatus());
+
+            notifySubscriptions(user2Client, pending);
+        } finally {
+            user1Client.close();
+            user2Client.close();
+        }
+    }
+
+    /**
+     * Tests that a viewer of /seats/{date}/stream first receives the seats that are already booked, and then receives
+     * the seats booked afterwards as they are booked.
+     */
+    @Test
+    public void testSeatStream() throws InterruptedException {
+
+        LocalDateTime date = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+        login(client, "testuser", "pa55word");
+        attemptBooking(client, 1, date, "A1", "A2");
+
+        BlockingQueue<InboundSseEvent> events = new LinkedBlockingQueue<>();
+        try (SseEventSource source = SseEventSource.target(client.target(WEB_SERVICE_URI + "/seats/2020-02-15T20:00:00/stream")).build()) {
+            source.register(events::add);
+            source.open();
+
+            InboundSseEvent snapshot = events.poll(5, TimeUnit.SECONDS);
+            assertNotNull(snapshot);
+            assertEquals("snapshot", snapshot.getName());
+            assertEquals(Arrays.asList("A1", "A2"), snapshot.readData(List.class, MediaType.APPLICATION_JSON_TYPE));
+
+            attemptBooking(client, 1, date, "C5", "C6");
+
+            InboundSseEvent booked = events.poll(5, TimeUnit.SECONDS);
+            assertNotNull(booked);
+            assertEquals("booked", booked.getName());
+            assertEquals(Arrays.asList("C5", "C6"), booked.readData(List.class, MediaType.APPLICATION_JSON_TYPE));
+        }
+    }
+
     // Helper methods
     // --------------------------------------------------------------------
 
@@ -206,6 +318,63 @@ public class ConcertSubscriptionIT {
                 .request().post(Entity.json(creds));
     }
 
+    /**
+     * A client that can have several subscriptions pending at once. Should be closed after use.
+     */
+    private static Client pooledClient() {
+        return new ResteasyClientBuilder().connectionPoolSize(10).maxPooledPerRoute(10).build();
+    }
+
+    /**
+     * Makes the given number of subscriptions to the 15th of February, which are notified once any seat is booked.
+     * Should already be logged in.
+     */
+    private static List<Future<Response>> subscribe(Client client, int numSubscriptions) {
+        ConcertInfoSubscriptionDTO subInfo = new ConcertInfoSubscriptionDTO(1, LocalDateTime.of(2020, 2, 15, 20, 0, 0), 1);
+        List<Future<Response>> futures = new ArrayList<>();
+        for (int i = 0; i < numSubscriptions; i++) {
+            futures.add(client.target(WEB_SERVICE_URI + "/subscribe/concertInfo")
+                    .request().async().post(Entity.json(subInfo)));
+        }
+        return futures;
+    }
+
+    /**
+     * Books seats so that the given subscriptions (made with subscribe) are notified, and checks that they were, so
+     * that they don't count against later tests' limits.
+     */
+    private static void notifySubscriptions(Client client, List<Future<Response>> subscriptions)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        attemptBooking(client, 1, LocalDateTime.of(2020, 2, 15, 20, 0, 0), "A1", "A2");
+        for (Future<Response> subscription : subscriptions) {
+            assertEquals(Response.Status.OK.getStatusCode(), subscription.get(5, TimeUnit.SECONDS).getStatus());
+        }
+        awaitNumSubscriptions(0);
+    }
+
+    /**
+     * Waits for the number of pending subscriptions, as reported by the metrics endpoint, to reach the given number.
+     * Subscriptions left by other tests time out within 5 seconds.
+     */
+    private static void awaitNumSubscriptions(int numSubscriptions) throws InterruptedException {
+        Client metricsClient = ClientBuilder.newClient();
+        try {
+            long numLive = -1;
+            for (int attempt = 0; attempt < 100; attempt++) {
+                numLive = metricsClient.target(WEB_SERVICE_URI + "-metrics").request()
+                        .get(new GenericType<Map<String, Number>>() {
+                        }).get("subscriptions.live").longValue();
+                if (numLive == numSubscriptions) {
+                    return;
+                }
+                Thread.sleep(100);
+            }
+            assertEquals(numSubscriptions, numLive);
+        } finally {
+            metricsClient.close();
+        }
+    }
+
     /**
      * Helper method - tries to book entire rows.
      */
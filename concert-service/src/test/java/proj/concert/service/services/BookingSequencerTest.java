@@ -0,0 +1,199 @@
+package proj.concert.service.services;
+
+import org.junit.*;
+
+import proj.concert.service.util.SeatAvailabilityIndex;
+import proj.concert.service.util.TheatreLayout;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class BookingSequencerTest {
+
+    private static final long CONCERT_ID = 1;
+    private static final LocalDateTime DATE = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+
+    // while set, the sequencer thread waits for it to open as soon as it has claimed seats
+    private static volatile CountDownLatch gate;
+    private static final CountDownLatch gateReached = new CountDownLatch(1);
+
+    private RecordingWriter writer;
+    private BookingSequencer sequencer;
+
+    @BeforeClass
+    public static void addGate() {
+        SeatAvailabilityIndex.instance().addListener((date, version, taken, freed) -> {
+            CountDownLatch waitFor = gate;
+            if (waitFor != null && date.equals(DATE)) {
+                gateReached.countDown();
+                try {
+                    waitFor.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    @Before
+    public void setUp() {
+        SeatAvailabilityIndex.instance().reset(Collections.singleton(DATE));
+        writer = new RecordingWriter();
+        sequencer = new BookingSequencer(16, writer);
+    }
+
+    @After
+    public void tearDown() {
+        CountDownLatch waitFor = gate;
+        gate = null;
+        if (waitFor != null) {
+            waitFor.countDown();
+        }
+    }
+
+    /**
+     * Tests that requests are decided in the order they were queued: each request overlaps the one before it, so only
+     * every other request gets its seats.
+     */
+    @Test
+    public void testDecidesInOrder() throws InterruptedException, ExecutionException, TimeoutException {
+        List<CompletableFuture<Long>> results = new ArrayList<>();
+        for (int seat = 0; seat < 10; seat++) {
+            results.add(submit(seat, seat + 1));
+        }
+
+        List<List<String>> expected = new ArrayList<>();
+        for (int seat = 0; seat < 10; seat++) {
+            Long bookingId = results.get(seat).get(5, TimeUnit.SECONDS);
+            if (seat % 2 == 0) {
+                assertNotNull(bookingId);
+                expected.add(labels(seat, seat + 1));
+            } else {
+                assertNull(bookingId);
+            }
+        }
+        assertEquals(expected, writer.written);
+    }
+
+    /**
+     * Tests that when many users ask for the same seats at once, exactly one of them gets them.
+     */
+    @Test
+    public void testConflictingClaims() throws InterruptedException, ExecutionException, TimeoutException {
+        int numUsers = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(numUsers);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Long>> results = new ArrayList<>();
+            for (int user = 0; user < numUsers; user++) {
+                long userId = user;
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return sequencer.submit(userId, CONCERT_ID, DATE, labels(40, 41), SeatAvailabilityIndex.emptyMask())
+                            .get(5, TimeUnit.SECONDS);
+                }));
+            }
+            start.countDown();
+
+            int numBooked = 0;
+            for (Future<Long> result : results) {
+                if (result.get(5, TimeUnit.SECONDS) != null) {
+                    numBooked++;
+                }
+            }
+            assertEquals(1, numBooked);
+            assertEquals(Collections.singletonList(labels(40, 41)), writer.written);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Tests that a best available request gets the first free block in the given rows, and is turned down if there is
+     * no block that large.
+     */
+    @Test
+    public void testBestAvailable() throws InterruptedException, ExecutionException, TimeoutException {
+        assertNotNull(submit(0, 1).get(5, TimeUnit.SECONDS));
+
+        List<int[]> rowA = Collections.singletonList(new int[]{0, 1});
+        assertNotNull(sequencer.submitBestAvailable(2, CONCERT_ID, DATE, 3, rowA, SeatAvailabilityIndex.emptyMask())
+                .get(5, TimeUnit.SECONDS));
+        assertEquals(labels(2, 3, 4), writer.written.get(1));
+
+        // only seven seats are left in row A
+        assertNull(sequencer.submitBestAvailable(2, CONCERT_ID, DATE, 8, rowA, SeatAvailabilityIndex.emptyMask())
+                .get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Tests that once a date's ring is full of undecided requests, further requests are rejected rather than queued,
+     * and that they are accepted again once the queued requests have been decided.
+     */
+    @Test
+    public void testRejectsWhenRingFull() throws InterruptedException, ExecutionException, TimeoutException {
+        sequencer = new BookingSequencer(4, writer);
+        gate = new CountDownLatch(1);
+
+        // the first request holds up the sequencer thread, so the others stay in the ring
+        List<CompletableFuture<Long>> results = new ArrayList<>();
+        results.add(submit(0));
+        assertTrue(gateReached.await(5, TimeUnit.SECONDS));
+        for (int seat = 1; seat < 4; seat++) {
+            results.add(submit(seat));
+        }
+
+        try {
+            submit(4).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+
+        gate.countDown();
+        for (CompletableFuture<Long> result : results) {
+            assertNotNull(result.get(5, TimeUnit.SECONDS));
+        }
+        assertNotNull(submit(4).get(5, TimeUnit.SECONDS));
+    }
+
+    private CompletableFuture<Long> submit(int... seats) {
+        return sequencer.submit(1, CONCERT_ID, DATE, labels(seats), SeatAvailabilityIndex.emptyMask());
+    }
+
+    private static List<String> labels(int... seats) {
+        List<String> labels = new ArrayList<>();
+        for (int seat : seats) {
+            labels.add(TheatreLayout.seatLabel(seat));
+        }
+        return labels;
+    }
+
+    /**
+     * Records the bookings it is given instead of persisting them, in the order it was given them.
+     */
+    private static class RecordingWriter extends BookingWriter {
+        final List<List<String>> written = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicLong nextId = new AtomicLong(1);
+
+        @Override
+        public CompletableFuture<Long> submit(long userId, long concertId, LocalDateTime date, List<String> seatLabels) {
+            written.add(seatLabels);
+            return CompletableFuture.completedFuture(nextId.getAndIncrement());
+        }
+    }
+}
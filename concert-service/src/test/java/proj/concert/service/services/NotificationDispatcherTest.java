@@ -0,0 +1,239 @@
+package proj.concert.service.services;
+
+import org.junit.*;
+
+import proj.concert.common.dto.ConcertInfoNotificationDTO;
+import proj.concert.common.dto.ConcertInfoSubscriptionDTO;
+import proj.concert.service.util.SeatAvailabilityIndex;
+import proj.concert.service.util.ServiceMetrics;
+import proj.concert.service.util.TheatreLayout;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Response;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class NotificationDispatcherTest {
+
+    private static final long CONCERT_ID = 1;
+    private static final LocalDateTime DATE = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+    private static final LocalDateTime DATE_2 = LocalDateTime.of(2020, 2, 16, 20, 0, 0);
+    private static final LocalDateTime DATE_3 = LocalDateTime.of(2020, 2, 17, 20, 0, 0);
+
+    private SubscriptionRegistry registry;
+    private CountDownLatch release;
+
+    @Before
+    public void setUp() {
+        SeatAvailabilityIndex.instance().reset(new HashSet<>(Arrays.asList(DATE, DATE_2, DATE_3)));
+        registry = new SubscriptionRegistry();
+        release = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+    }
+
+    /**
+     * Tests that a change notifies the subscribers to that date whose threshold has been reached, with the number of
+     * seats left, and leaves the others subscribed.
+     */
+    @Test
+    public void testNotifiesReachedThresholds() throws InterruptedException {
+        NotificationDispatcher dispatcher = new NotificationDispatcher(registry, 1, 10);
+        RecordingResponse reached = subscribe(DATE, 50, null);
+        RecordingResponse notReached = subscribe(DATE, 51, null);
+        RecordingResponse otherDate = subscribe(DATE_2, 0, null);
+
+        List<String> seatLabels = new ArrayList<>();
+        for (int seat = 0; seat < TheatreLayout.NUM_SEATS_IN_THEATRE / 2; seat++) {
+            seatLabels.add(TheatreLayout.seatLabel(seat));
+        }
+        SeatAvailabilityIndex.instance().markBooked(DATE, seatLabels);
+        dispatcher.dateChanged(CONCERT_ID, DATE);
+
+        assertTrue(reached.resumed.await(5, TimeUnit.SECONDS));
+        Response response = (Response) reached.response;
+        assertEquals(TheatreLayout.NUM_SEATS_IN_THEATRE - seatLabels.size(),
+                ((ConcertInfoNotificationDTO) response.getEntity()).getNumSeatsRemaining());
+
+        assertEquals(1, notReached.resumed.getCount());
+        assertEquals(1, otherDate.resumed.getCount());
+        assertEquals(2, registry.size());
+    }
+
+    /**
+     * Tests that changes to a date that is already waiting to be dispatched are coalesced into that one dispatch, and
+     * that a change made after the dispatch is dispatched again.
+     */
+    @Test
+    public void testCoalescesChanges() throws InterruptedException {
+        NotificationDispatcher dispatcher = new NotificationDispatcher(registry, 1, 10);
+        holdDispatcherThread(dispatcher);
+
+        RecordingResponse first = subscribe(DATE_2, 0, null);
+        RecordingResponse second = subscribe(DATE_2, 0, null);
+        for (int i = 0; i < 5; i++) {
+            dispatcher.dateChanged(CONCERT_ID, DATE_2);
+        }
+        assertEquals(1, metric("notifications.queueDepth"));
+        assertEquals(1, metric("notifications.pendingDates"));
+
+        release.countDown();
+        assertTrue(first.resumed.await(5, TimeUnit.SECONDS));
+        assertTrue(second.resumed.await(5, TimeUnit.SECONDS));
+
+        RecordingResponse later = subscribe(DATE_2, 0, null);
+        dispatcher.dateChanged(CONCERT_ID, DATE_2);
+        assertTrue(later.resumed.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Tests that when the queue is full, a change is dispatched on the thread that made it instead of being dropped,
+     * while the changes already queued still go to the dispatcher thread.
+     */
+    @Test
+    public void testCallerRunsWhenQueueFull() throws InterruptedException {
+        NotificationDispatcher dispatcher = new NotificationDispatcher(registry, 1, 1);
+        holdDispatcherThread(dispatcher);
+
+        RecordingResponse queued = subscribe(DATE_2, 0, null);
+        dispatcher.dateChanged(CONCERT_ID, DATE_2);
+        assertEquals(1, metric("notifications.queueDepth"));
+
+        RecordingResponse overflow = subscribe(DATE_3, 0, null);
+        dispatcher.dateChanged(CONCERT_ID, DATE_3);
+        assertEquals(0, overflow.resumed.getCount());
+        assertSame(Thread.currentThread(), overflow.resumedOn);
+        assertEquals(1, queued.resumed.getCount());
+
+        release.countDown();
+        assertTrue(queued.resumed.await(5, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), queued.resumedOn);
+    }
+
+    // Occupies the dispatcher's only thread with a notification that doesn't return until release is opened
+    private void holdDispatcherThread(NotificationDispatcher dispatcher) throws InterruptedException {
+        RecordingResponse blocker = subscribe(DATE, 0, release);
+        dispatcher.dateChanged(CONCERT_ID, DATE);
+        assertTrue(blocker.resumed.await(5, TimeUnit.SECONDS));
+        assertEquals(0, metric("notifications.queueDepth"));
+    }
+
+    private RecordingResponse subscribe(LocalDateTime date, int threshold, CountDownLatch waitFor) {
+        RecordingResponse response = new RecordingResponse(waitFor);
+        assertEquals(SubscriptionRegistry.AddResult.ADDED, registry.add(
+                new ConcertSubscription(new ConcertInfoSubscriptionDTO(CONCERT_ID, date, threshold), response, 1)));
+        return response;
+    }
+
+    private static long metric(String name) {
+        return ServiceMetrics.instance().snapshot().get(name).longValue();
+    }
+
+    /**
+     * Records what a suspended request is resumed with, and on which thread. If it is given a latch, resuming it waits
+     * for the latch to open.
+     */
+    private static class RecordingResponse implements AsyncResponse {
+        final CountDownLatch resumed = new CountDownLatch(1);
+        volatile Object response;
+        volatile Thread resumedOn;
+        private final CountDownLatch waitFor;
+
+        RecordingResponse(CountDownLatch waitFor) {
+            this.waitFor = waitFor;
+        }
+
+        @Override
+        public boolean resume(Object response) {
+            this.response = response;
+            resumedOn = Thread.currentThread();
+            resumed.countDown();
+            if (waitFor != null) {
+                try {
+                    waitFor.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean resume(Throwable response) {
+            return resume((Object) response);
+        }
+
+        @Override
+        public boolean cancel() {
+            return false;
+        }
+
+        @Override
+        public boolean cancel(int retryAfter) {
+            return false;
+        }
+
+        @Override
+        public boolean cancel(Date retryAfter) {
+            return false;
+        }
+
+        @Override
+        public boolean isSuspended() {
+            return resumed.getCount() > 0;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return !isSuspended();
+        }
+
+        @Override
+        public boolean setTimeout(long time, TimeUnit unit) {
+            return true;
+        }
+
+        @Override
+        public void setTimeoutHandler(TimeoutHandler handler) {
+        }
+
+        @Override
+        public Collection<Class<?>> register(Class<?> callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Map<Class<?>, Collection<Class<?>>> register(Class<?> callback, Class<?>... callbacks) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Collection<Class<?>> register(Object callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Map<Class<?>, Collection<Class<?>>> register(Object callback, Object... callbacks) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package proj.concert.service.services;
+
+import org.junit.*;
+
+import proj.concert.common.dto.ConcertInfoSubscriptionDTO;
+import proj.concert.service.util.ServiceConfig;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SubscriptionRegistryTest {
+
+    private static final long CONCERT_ID = 1;
+    private static final LocalDateTime DATE = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+    private static final LocalDateTime OTHER_DATE = LocalDateTime.of(2020, 2, 16, 20, 0, 0);
+
+    private SubscriptionRegistry registry;
+
+    @Before
+    public void setUp() {
+        registry = new SubscriptionRegistry();
+    }
+
+    /**
+     * Tests that a change in occupancy picks exactly the subscriptions to that concert date whose threshold it has
+     * reached, and that each is only picked once.
+     */
+    @Test
+    public void testRemoveReached() {
+        List<ConcertSubscription> subscriptions = new ArrayList<>();
+        for (int threshold : new int[]{10, 50, 50, 51, 90}) {
+            subscriptions.add(subscribe(CONCERT_ID, DATE, threshold, 1));
+        }
+        subscribe(CONCERT_ID + 1, DATE, 50, 1);
+        subscribe(CONCERT_ID, OTHER_DATE, 50, 1);
+
+        // thresholds are whole percentages, so 50.9% reaches 50 but not 51
+        assertEquals(new HashSet<>(subscriptions.subList(0, 3)),
+                new HashSet<>(registry.removeReached(CONCERT_ID, DATE, 50.9f)));
+        assertEquals(4, registry.size());
+
+        assertEquals(Collections.emptyList(), registry.removeReached(CONCERT_ID, DATE, 50.9f));
+        assertEquals(new HashSet<>(subscriptions.subList(3, 5)),
+                new HashSet<>(registry.removeReached(CONCERT_ID, DATE, 100f)));
+        assertEquals(2, registry.size());
+
+        assertEquals(Collections.emptyList(), registry.removeReached(CONCERT_ID + 2, DATE, 100f));
+    }
+
+    /**
+     * Tests that removing a subscription that has already been notified, or already removed, doesn't change the
+     * registry's size.
+     */
+    @Test
+    public void testRemoveTwice() {
+        ConcertSubscription notified = subscribe(CONCERT_ID, DATE, 10, 1);
+        ConcertSubscription timedOut = subscribe(CONCERT_ID, DATE, 90, 1);
+        assertEquals(Collections.singletonList(notified), registry.removeReached(CONCERT_ID, DATE, 10f));
+        assertEquals(1, registry.size());
+
+        registry.remove(notified);
+        assertEquals(1, registry.size());
+
+        registry.remove(timedOut);
+        registry.remove(timedOut);
+        assertEquals(0, registry.size());
+        assertEquals(Collections.emptyList(), registry.removeReached(CONCERT_ID, DATE, 100f));
+    }
+
+    /**
+     * Tests that a user can't hold more than the configured number of subscriptions, that this doesn't affect other
+     * users, and that the user can subscribe again once one of theirs has ended.
+     */
+    @Test
+    public void testLimitPerUser() {
+        List<ConcertSubscription> subscriptions = new ArrayList<>();
+        for (int i = 0; i < ServiceConfig.SUBSCRIPTION_MAX_PER_USER; i++) {
+            subscriptions.add(subscribe(CONCERT_ID, DATE, i % 100, 1));
+        }
+
+        ConcertSubscription extra = subscription(CONCERT_ID, DATE, 50, 1);
+        assertEquals(SubscriptionRegistry.AddResult.FULL_FOR_USER, registry.add(extra));
+        assertEquals(ServiceConfig.SUBSCRIPTION_MAX_PER_USER, registry.size());
+        assertEquals(SubscriptionRegistry.AddResult.ADDED, registry.add(subscription(CONCERT_ID, DATE, 50, 2)));
+
+        // a rejected subscription was never added, so removing it when it ends changes nothing
+        registry.remove(extra);
+        assertEquals(ServiceConfig.SUBSCRIPTION_MAX_PER_USER + 1, registry.size());
+
+        registry.remove(subscriptions.get(0));
+        assertEquals(SubscriptionRegistry.AddResult.ADDED, registry.add(extra));
+
+        for (ConcertSubscription subscription : subscriptions) {
+            registry.remove(subscription);
+        }
+        registry.remove(extra);
+        assertEquals(1, registry.numUsers());
+    }
+
+    /**
+     * Tests that a user is forgotten once all of their subscriptions have ended, however they ended.
+     */
+    @Test
+    public void testForgetsUsersWithoutSubscriptions() {
+        ConcertSubscription notified = subscribe(CONCERT_ID, DATE, 10, 1);
+        ConcertSubscription timedOut = subscribe(CONCERT_ID, DATE, 90, 1);
+        subscribe(CONCERT_ID, DATE, 90, 2);
+        assertEquals(2, registry.numUsers());
+
+        registry.removeReached(CONCERT_ID, DATE, 10f);
+        assertEquals(2, registry.numUsers());
+        registry.remove(timedOut);
+        registry.remove(notified);
+        assertEquals(1, registry.numUsers());
+
+        registry.removeReached(CONCERT_ID, DATE, 100f);
+        assertEquals(0, registry.numUsers());
+        assertEquals(0, registry.size());
+    }
+
+    private ConcertSubscription subscribe(long concertId, LocalDateTime date, int threshold, long userId) {
+        ConcertSubscription subscription = subscription(concertId, date, threshold, userId);
+        assertEquals(SubscriptionRegistry.AddResult.ADDED, registry.add(subscription));
+        return subscription;
+    }
+
+    // the registry never touches the suspended response, so there isn't one
+    private static ConcertSubscription subscription(long concertId, LocalDateTime date, int threshold, long userId) {
+        return new ConcertSubscription(new ConcertInfoSubscriptionDTO(concertId, date, threshold), null, userId);
+    }
+}
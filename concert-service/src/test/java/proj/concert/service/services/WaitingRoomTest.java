@@ -0,0 +1,158 @@
+package proj.concert.service.services;
+
+import org.junit.*;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class WaitingRoomTest {
+
+    private static final int MAX_ACTIVE = 2;
+    private static final LocalDateTime DATE = LocalDateTime.of(2020, 2, 15, 20, 0, 0);
+
+    private WaitingRoom waitingRoom;
+
+    @Before
+    public void setUp() {
+        waitingRoom = new WaitingRoom(MAX_ACTIVE);
+    }
+
+    /**
+     * Tests that sessions are admitted in the order they joined, up to the cap, and that a session leaving lets the
+     * next in line in.
+     */
+    @Test
+    public void testAdmitInOrder() {
+        List<WaitingRoom.Admission> admissions = join(4);
+
+        assertEquals(0, admissions.get(0).getPosition());
+        assertEquals(0, admissions.get(1).getPosition());
+        assertEquals(1, admissions.get(2).getPosition());
+        assertEquals(2, admissions.get(3).getPosition());
+
+        waitingRoom.leave(admissions.get(0));
+        assertTrue(admissions.get(2).isAdmitted());
+        assertEquals(1, admissions.get(3).getPosition());
+        assertEquals(MAX_ACTIVE, numAdmitted(admissions));
+    }
+
+    /**
+     * Tests that sessions that leave while still waiting don't let anyone in beyond the cap, but do move the sessions
+     * behind them up the queue.
+     */
+    @Test
+    public void testAbandonedWaitersKeepCap() {
+        List<WaitingRoom.Admission> admissions = join(6);
+
+        // abandon waiting sessions, behind and in front of others that are still waiting
+        waitingRoom.leave(admissions.get(5));
+        waitingRoom.leave(admissions.get(3));
+
+        assertFalse(admissions.get(2).isAdmitted());
+        assertEquals(1, admissions.get(2).getPosition());
+        assertEquals(2, admissions.get(4).getPosition());
+        assertEquals(MAX_ACTIVE, numAdmitted(admissions));
+
+        waitingRoom.leave(admissions.get(0));
+        assertTrue(admissions.get(2).isAdmitted());
+        assertEquals(1, admissions.get(4).getPosition());
+        assertEquals(MAX_ACTIVE, numAdmitted(admissions));
+
+        // the abandoned session is skipped over once another admitted session leaves
+        waitingRoom.leave(admissions.get(1));
+        assertTrue(admissions.get(4).isAdmitted());
+        assertEquals(MAX_ACTIVE, numAdmitted(admissions));
+
+        // and doesn't take any of the places that become free later
+        List<WaitingRoom.Admission> later = join(2);
+        assertFalse(later.get(0).isAdmitted());
+        waitingRoom.leave(admissions.get(2));
+        assertTrue(later.get(0).isAdmitted());
+        assertFalse(later.get(1).isAdmitted());
+    }
+
+    /**
+     * Tests that leaving twice, e.g. by expiring after making a booking, only frees one place.
+     */
+    @Test
+    public void testLeaveTwice() {
+        List<WaitingRoom.Admission> admissions = join(4);
+
+        waitingRoom.leave(admissions.get(0));
+        waitingRoom.leave(admissions.get(0));
+
+        assertTrue(admissions.get(2).isAdmitted());
+        assertFalse(admissions.get(3).isAdmitted());
+    }
+
+    /**
+     * Tests that sessions joining and leaving from many threads at once are all admitted in the end, and never more
+     * than the cap at a time, including when some of them give up while waiting.
+     */
+    @Test
+    public void testConcurrentJoinAndLeave() throws InterruptedException, ExecutionException, TimeoutException {
+        int numThreads = 8;
+        AtomicInteger numInside = new AtomicInteger();
+        AtomicInteger maxInside = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> threads = new ArrayList<>();
+            for (int thread = 0; thread < numThreads; thread++) {
+                threads.add(executor.submit(() -> {
+                    for (int i = 0; i < 500; i++) {
+                        WaitingRoom.Admission admission = waitingRoom.join(DATE);
+                        if (i % 5 == 0) {
+                            // gives up without waiting to be admitted
+                            waitingRoom.leave(admission);
+                            continue;
+                        }
+                        while (!admission.isAdmitted()) {
+                            Thread.yield();
+                        }
+                        maxInside.accumulateAndGet(numInside.incrementAndGet(), Math::max);
+                        numInside.decrementAndGet();
+                        waitingRoom.leave(admission);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> thread : threads) {
+                thread.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertTrue(maxInside.get() <= MAX_ACTIVE);
+        assertEquals(MAX_ACTIVE, numAdmitted(join(MAX_ACTIVE + 1)));
+    }
+
+    private List<WaitingRoom.Admission> join(int numSessions) {
+        List<WaitingRoom.Admission> admissions = new ArrayList<>();
+        for (int i = 0; i < numSessions; i++) {
+            admissions.add(waitingRoom.join(DATE));
+        }
+        return admissions;
+    }
+
+    // The number of the given sessions that are admitted and haven't left
+    private int numAdmitted(List<WaitingRoom.Admission> admissions) {
+        int numAdmitted = 0;
+        for (WaitingRoom.Admission admission : admissions) {
+            if (waitingRoom.get(admission.getToken()) != null && admission.isAdmitted()) {
+                numAdmitted++;
+            }
+        }
+        return numAdmitted;
+    }
+}